@@ -0,0 +1,160 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Moves output processing off Gradle's test event thread. Actions are queued in a bounded queue
+ * (producers block when it is full) and executed, in submission order, in batches by a single
+ * writer thread.
+ *
+ * <p>Each action is submitted on behalf of a key (a suite) so that {@link #await(Object)} only
+ * waits for that key's actions. If an action fails, or the writer thread dies, the failure is
+ * rethrown to all producers and waiters instead of blocking them forever.
+ */
+class AsyncOutputPipeline implements Closeable {
+  private static final int QUEUE_CAPACITY = 16 * 1024;
+  private static final int MAX_BATCH = 1024;
+  private static final long POLL_MILLIS = 100;
+
+  private record Action(long seq, Runnable runnable) {}
+
+  private static final Action POISON = new Action(-1, () -> {});
+
+  private final BlockingQueue<Action> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+  private final AtomicReference<Throwable> failure = new AtomicReference<>();
+  private final Map<Object, Long> lastSubmitted = new ConcurrentHashMap<>();
+  private final Object submitLock = new Object();
+  private final Thread writer;
+
+  /** Guarded by {@link #submitLock}. Sequence numbers are assigned in queue order. */
+  private long submitted;
+
+  /** Guarded by {@code this}. The sequence number of the last executed action. */
+  private long completed;
+
+  /** Guarded by {@code this}. Set once the writer thread exits. */
+  private boolean stopped;
+
+  public AsyncOutputPipeline(String name) {
+    writer = new Thread(this::drain, name);
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  public void submit(Object key, Runnable action) {
+    rethrowFailure();
+    synchronized (submitLock) {
+      long seq = ++submitted;
+      enqueue(new Action(seq, action));
+      lastSubmitted.put(key, seq);
+    }
+  }
+
+  /**
+   * Wait until all actions previously submitted for a given key have been executed. Actions of
+   * other keys submitted after them are not waited for.
+   */
+  public void await(Object key) {
+    Long seq = lastSubmitted.remove(key);
+    if (seq != null) {
+      synchronized (this) {
+        while (completed < seq) {
+          if (stopped) {
+            rethrowFailure();
+            throw new IllegalStateException("The test output writer has stopped.");
+          }
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for test output.", e);
+          }
+        }
+      }
+    }
+    rethrowFailure();
+  }
+
+  private void enqueue(Action action) {
+    try {
+      while (!queue.offer(action, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+        synchronized (this) {
+          if (stopped) {
+            rethrowFailure();
+            throw new IllegalStateException("The test output writer has stopped.");
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while queuing test output.", e);
+    }
+  }
+
+  private void rethrowFailure() {
+    Throwable t = failure.get();
+    if (t instanceof RuntimeException e) {
+      throw e;
+    }
+    if (t != null) {
+      throw new RuntimeException("Test output processing failed.", t);
+    }
+  }
+
+  private void drain() {
+    var batch = new ArrayList<Action>(MAX_BATCH);
+    long done = 0;
+    try {
+      while (true) {
+        batch.add(queue.take());
+        queue.drainTo(batch, MAX_BATCH - 1);
+
+        for (Action action : batch) {
+          if (action == POISON) {
+            return;
+          }
+          try {
+            action.runnable().run();
+          } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+          }
+          done = action.seq();
+        }
+        batch.clear();
+
+        synchronized (this) {
+          completed = done;
+          notifyAll();
+        }
+      }
+    } catch (InterruptedException e) {
+      // Exit.
+    } catch (Throwable t) {
+      failure.compareAndSet(null, t);
+    } finally {
+      synchronized (this) {
+        completed = Math.max(completed, done);
+        stopped = true;
+        notifyAll();
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    try {
+      enqueue(POISON);
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    rethrowFailure();
+  }
+}
@@ -0,0 +1,19 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import javax.inject.Inject;
+import org.gradle.internal.logging.text.StyledTextOutput;
+import org.gradle.internal.logging.text.StyledTextOutputFactory;
+
+/**
+ * Creates styled console output for test listeners. Instances are created with {@code
+ * ObjectFactory} so that the (non-serializable) output factory is injected again when tasks are
+ * loaded from the configuration cache.
+ */
+public abstract class ConsoleStyling {
+  @Inject
+  protected abstract StyledTextOutputFactory getStyledOutputFactory();
+
+  public StyledTextOutput create() {
+    return getStyledOutputFactory().create(TestingEnvPlugin.class);
+  }
+}
@@ -0,0 +1,179 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.OptionalLong;
+import java.util.regex.Pattern;
+
+/**
+ * Computes the default number of forked test JVMs of a test task from the resources actually
+ * available to the build: the effective CPU count (the JVM accounts for cgroup CPU quotas and
+ * affinity) and the memory available to new processes (including cgroup memory limits) divided by
+ * the expected footprint of a fork. With test threads inside forks, the CPUs are split between
+ * forks and threads. Test tasks running concurrently share these resources through the build-wide
+ * fork budget ({@link TestForkBudgetService}).
+ */
+class DefaultTestJvms {
+  /** Heap size assumed for a fork if the maximum heap is not given explicitly. */
+  static final long ASSUMED_HEAP = 512L << 20;
+
+  /** Non-heap memory of a fork (metaspace, code cache, thread stacks, GC structures). */
+  static final long FORK_OVERHEAD = 256L << 20;
+
+  private static final Pattern HEAP_SIZE = Pattern.compile("(\\d+)([kKmMgGtT]?)");
+
+  /** The computed number of forks and a human-readable explanation of how it was arrived at. */
+  public record Decision(int jvms, String reason) {}
+
+  /**
+   * @param threads Test threads per fork or zero if they're computed from the number of forks (see
+   *     {@link #threads}).
+   */
+  public static Decision compute(String maxHeap, int threads) {
+    int cpus = Runtime.getRuntime().availableProcessors();
+    long heap = maxHeap == null ? ASSUMED_HEAP : parseHeapSize(maxHeap).orElse(ASSUMED_HEAP);
+    long forkMemory = heap + FORK_OVERHEAD;
+    int cpuJvms = Math.max(1, cpuBudget() / Math.max(1, threads));
+
+    int jvms = cpuJvms;
+    String memoryReason = "available memory unknown";
+    OptionalLong available = availableMemory();
+    if (available.isPresent()) {
+      int memoryJvms = (int) Math.max(1, available.getAsLong() / forkMemory);
+      jvms = Math.min(jvms, memoryJvms);
+      memoryReason =
+          String.format(
+              Locale.ROOT,
+              "%d MB available memory allows %d JVM(s) of %d MB (heap + overhead)",
+              available.getAsLong() >> 20,
+              memoryJvms,
+              forkMemory >> 20);
+    }
+
+    String reason =
+        String.format(
+            Locale.ROOT,
+            "%d CPU(s) allow %d JVM(s)%s, %s",
+            cpus,
+            cpuJvms,
+            threads > 1 ? " with " + threads + " test threads each" : "",
+            memoryReason);
+    return new Decision(jvms, reason);
+  }
+
+  /**
+   * The number of test threads per fork that uses the CPUs left over by the given number of forks
+   * (when memory limits the number of forks, for example).
+   */
+  public static int threads(int jvms) {
+    return Math.max(1, cpuBudget() / Math.max(1, jvms));
+  }
+
+  /** CPUs for the tests of a single task, leaving room for hyperthreads and the build itself. */
+  private static int cpuBudget() {
+    int cpus = Runtime.getRuntime().availableProcessors();
+    return Math.max(1, cpus / 2);
+  }
+
+  /** Parse a JVM heap size (as in {@code -Xmx}). */
+  static OptionalLong parseHeapSize(String value) {
+    var m = HEAP_SIZE.matcher(value.trim());
+    if (!m.matches()) {
+      return OptionalLong.empty();
+    }
+    long size = Long.parseLong(m.group(1));
+    int shift =
+        switch (m.group(2).toLowerCase(Locale.ROOT)) {
+          case "k" -> 10;
+          case "m" -> 20;
+          case "g" -> 30;
+          case "t" -> 40;
+          default -> 0;
+        };
+    return OptionalLong.of(size << shift);
+  }
+
+  /**
+   * Memory available for new processes: the lower of what the OS reports as available and the
+   * headroom under the cgroup (v2 or v1) memory limit, if there is one.
+   */
+  static OptionalLong availableMemory() {
+    long available = Long.MAX_VALUE;
+
+    var meminfo = readLines(Path.of("/proc/meminfo"));
+    for (String line : meminfo) {
+      if (line.startsWith("MemAvailable:")) {
+        var kb = parseLong(line.substring("MemAvailable:".length()).replace("kB", ""));
+        if (kb.isPresent()) {
+          available = kb.getAsLong() << 10;
+        }
+      }
+    }
+
+    if (available == Long.MAX_VALUE
+        && ManagementFactory.getOperatingSystemMXBean()
+            instanceof com.sun.management.OperatingSystemMXBean os) {
+      available = os.getFreeMemorySize();
+    }
+
+    available =
+        Math.min(
+            available,
+            cgroupHeadroom(
+                Path.of("/sys/fs/cgroup"), "memory.max", "memory.current", "inactive_file"));
+    available =
+        Math.min(
+            available,
+            cgroupHeadroom(
+                Path.of("/sys/fs/cgroup/memory"),
+                "memory.limit_in_bytes",
+                "memory.usage_in_bytes",
+                "total_inactive_file"));
+
+    return available == Long.MAX_VALUE || available <= 0
+        ? OptionalLong.empty()
+        : OptionalLong.of(available);
+  }
+
+  /**
+   * The memory limit of a cgroup minus its usage. Usage includes the page cache, inactive file
+   * pages are reclaimable so they are not counted.
+   */
+  private static long cgroupHeadroom(
+      Path cgroupDir, String limitFile, String usageFile, String inactiveFileKey) {
+    var limit = parseLong(String.join("", readLines(cgroupDir.resolve(limitFile))));
+    var usage = parseLong(String.join("", readLines(cgroupDir.resolve(usageFile))));
+    // cgroup v1 reports "no limit" as a huge number, v2 as "max".
+    if (limit.isEmpty() || usage.isEmpty() || limit.getAsLong() >= (1L << 60)) {
+      return Long.MAX_VALUE;
+    }
+
+    long inactiveFile = 0;
+    for (String line : readLines(cgroupDir.resolve("memory.stat"))) {
+      if (line.startsWith(inactiveFileKey + " ")) {
+        inactiveFile = parseLong(line.substring(inactiveFileKey.length())).orElse(0);
+      }
+    }
+    return Math.max(0, limit.getAsLong() - Math.max(0, usage.getAsLong() - inactiveFile));
+  }
+
+  private static OptionalLong parseLong(String value) {
+    try {
+      return OptionalLong.of(Long.parseLong(value.trim()));
+    } catch (NumberFormatException e) {
+      return OptionalLong.empty();
+    }
+  }
+
+  private static List<String> readLines(Path file) {
+    try {
+      return Files.isReadable(file) ? Files.readAllLines(file) : List.of();
+    } catch (IOException e) {
+      return List.of();
+    }
+  }
+}
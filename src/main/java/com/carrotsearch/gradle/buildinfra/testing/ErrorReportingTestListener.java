@@ -4,26 +4,36 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.io.Writer;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
+import org.gradle.api.internal.tasks.testing.TestDescriptorInternal;
 import org.gradle.api.internal.tasks.testing.logging.FullExceptionFormatter;
 import org.gradle.api.internal.tasks.testing.logging.TestExceptionFormatter;
 import org.gradle.api.logging.LogLevel;
 import org.gradle.api.logging.Logger;
+import org.gradle.api.provider.Provider;
 import org.gradle.api.tasks.testing.TestDescriptor;
 import org.gradle.api.tasks.testing.TestListener;
 import org.gradle.api.tasks.testing.TestOutputEvent;
 import org.gradle.api.tasks.testing.TestOutputListener;
 import org.gradle.api.tasks.testing.TestResult;
 import org.gradle.api.tasks.testing.logging.TestLogging;
-import org.gradle.internal.logging.text.StyledTextOutput;
 
 /**
  * An error reporting listener that queues test output streams and displays them on failure.
@@ -33,56 +43,213 @@ import org.gradle.internal.logging.text.StyledTextOutput;
 class ErrorReportingTestListener implements TestOutputListener, TestListener {
   private final Logger taskLogger;
   private final TestExceptionFormatter formatter;
-  private final Map<TestKey, OutputHandler> outputHandlers = new ConcurrentHashMap<>();
+  private final Map<Object, OutputHandler> outputHandlers = new ConcurrentHashMap<>();
   private final Path spillDir;
+  private final long outputMemoryBudget;
+  private final long retainHead;
+  private final long retainTail;
+  private transient SpillArena spillArena;
+  private transient OutputMemoryBudget memoryBudget;
+  private final boolean asyncOutput;
+  private transient AsyncOutputPipeline outputPipeline;
+  private transient ScheduledExecutorService verboseEchoTimer;
   private final Path outputsDir;
   private final boolean verboseMode;
-  private final StyledTextOutput styledOut;
+  private final Provider<TestsConsoleService> console;
+  private final ConsoleStyling styling;
+  private final Provider<TestsSummaryService> summary;
+  private final String taskPath;
+  private final long suiteOutputQuota;
+  private final long taskOutputQuota;
+  private final AtomicLong taskOutput = new AtomicLong();
   private final ReproduceLineExtension reproduceLineExtension;
   private final boolean fullOutputOnErrorMode;
+  private final long watchdogTimeout;
+  private final boolean watchdogKill;
+  private transient volatile ForkWatchdog watchdog;
+  private final Set<Object> hungSuites = ConcurrentHashMap.newKeySet();
+  private final int failureGroupReports;
+  private transient FailureGroups failureGroups;
+
+  /**
+   * Suites with failures, mapped to whether any of their failures is reported in full (see {@link
+   * FailureGroups}).
+   */
+  private final Map<Object, Boolean> reportedFailures = new ConcurrentHashMap<>();
+
+  /**
+   * Top-level suites that have started and not completed yet, so that thread dumps of the watchdog
+   * arriving after a suite completed are not written to its (closed) output.
+   */
+  private final Set<Object> runningSuites = new HashSet<>();
 
   public ErrorReportingTestListener(
       Logger taskLogger,
-      StyledTextOutput styledOut,
+      Provider<TestsConsoleService> console,
+      ConsoleStyling styling,
+      Provider<TestsSummaryService> summary,
+      String taskPath,
       ReproduceLineExtension reproduceLineExtension,
       TestLogging testLogging,
       Path spillDir,
       Path outputsDir,
       boolean verboseMode,
-      boolean fullOutputOnErrorMode) {
+      boolean fullOutputOnErrorMode,
+      long outputMemoryBudget,
+      long retainHead,
+      long retainTail,
+      boolean asyncOutput,
+      long suiteOutputQuota,
+      long taskOutputQuota,
+      long watchdogTimeout,
+      boolean watchdogKill,
+      int failureGroupReports) {
     this.formatter = new FullExceptionFormatter(testLogging);
     this.spillDir = spillDir;
     this.outputsDir = outputsDir;
     this.verboseMode = verboseMode;
     this.taskLogger = taskLogger;
-    this.styledOut = styledOut;
+    this.console = console;
+    this.styling = styling;
+    this.summary = summary;
+    this.taskPath = taskPath;
     this.reproduceLineExtension = reproduceLineExtension;
     this.fullOutputOnErrorMode = fullOutputOnErrorMode;
+    this.outputMemoryBudget = outputMemoryBudget;
+    this.retainHead = retainHead;
+    this.retainTail = retainTail;
+    this.asyncOutput = asyncOutput;
+    this.suiteOutputQuota = suiteOutputQuota;
+    this.taskOutputQuota = taskOutputQuota;
+    this.watchdogTimeout = watchdogTimeout;
+    this.watchdogKill = watchdogKill;
+    this.failureGroupReports = failureGroupReports;
   }
 
   @Override
   public void onOutput(TestDescriptor testDescriptor, TestOutputEvent outputEvent) {
-    handlerFor(testDescriptor).write(outputEvent);
+    watchdogActivity(testDescriptor, false);
+    if (asyncOutput) {
+      outputPipeline()
+          .submit(
+              keyOf(suiteOf(testDescriptor)), () -> handlerFor(testDescriptor).write(outputEvent));
+    } else {
+      handlerFor(testDescriptor).write(outputEvent);
+    }
   }
 
   @Override
-  public void beforeSuite(TestDescriptor testDescriptor) {}
+  public void beforeSuite(TestDescriptor testDescriptor) {
+    if (testDescriptor.getParent() == null) {
+      taskOutput.set(0);
+      startWatchdog();
+      if (verboseMode) {
+        startVerboseEchoTimer();
+      }
+    } else {
+      if (!ForkWatchdog.isExecutor(testDescriptor) && suiteOf(testDescriptor) == testDescriptor) {
+        synchronized (runningSuites) {
+          runningSuites.add(keyOf(testDescriptor));
+        }
+      }
+      watchdogActivity(testDescriptor, false);
+    }
+  }
 
   @Override
-  public void beforeTest(TestDescriptor testDescriptor) {}
+  public void beforeTest(TestDescriptor testDescriptor) {
+    watchdogActivity(testDescriptor, false);
+  }
 
   private static final int WARN_OUTPUT_SIZE_LIMIT = 1024 * 1024 * 10;
+  private static final int MAX_GROUP_SUITES_LISTED = 10;
+  private static final String FAILURE_GROUPS_FILE = "failure-groups.txt";
+
+  private synchronized SpillArena spillArena() {
+    if (spillArena == null) {
+      spillArena = new SpillArena(spillDir, retainHead, retainTail);
+    }
+    return spillArena;
+  }
+
+  private synchronized AsyncOutputPipeline outputPipeline() {
+    if (outputPipeline == null) {
+      outputPipeline = new AsyncOutputPipeline("test-output-writer");
+    }
+    return outputPipeline;
+  }
+
+  private synchronized FailureGroups failureGroups() {
+    if (failureGroups == null) {
+      failureGroups = new FailureGroups(failureGroupReports);
+    }
+    return failureGroups;
+  }
+
+  private synchronized OutputMemoryBudget memoryBudget() {
+    if (memoryBudget == null) {
+      memoryBudget = new OutputMemoryBudget(outputMemoryBudget);
+    }
+    return memoryBudget;
+  }
 
   @Override
   public void afterSuite(final TestDescriptor suite, TestResult result) {
-    if (suite.getParent() == null || suite.getName().startsWith("Gradle")) {
+    if (suite.getParent() == null) {
+      closeWatchdog();
+      closeVerboseEchoTimer();
+      closeOutputPipeline();
+      closeSpillArena();
+      reportFailureGroups();
+      return;
+    }
+
+    if (suite.getName().startsWith("Gradle")) {
+      ForkWatchdog watchdog = this.watchdog;
+      if (watchdog != null && ForkWatchdog.isExecutor(suite)) {
+        watchdog.forkCompleted(suite);
+      }
       return;
     }
 
-    TestKey key = TestKey.of(suite);
+    // Output of nested containers (and their tests) is reported with the suite they belong to.
+    if (suiteOf(suite) != suite) {
+      return;
+    }
+
+    watchdogActivity(suite, true);
+
+    // Make sure all of the suite's output has been processed.
+    Object key = keyOf(suite);
+    if (asyncOutput) {
+      outputPipeline().await(key);
+    }
+
+    // Thread dumps of the watchdog arriving from now on are dropped.
+    synchronized (runningSuites) {
+      runningSuites.remove(key);
+    }
+
     try {
       OutputHandler outputHandler = outputHandlers.get(key);
       if (outputHandler != null) {
+        summary
+            .get()
+            .suiteOutput(
+                taskPath,
+                suite.getName(),
+                outputHandler.received(),
+                result.getEndTime() - result.getStartTime());
+        if (outputHandler.isOverQuota()) {
+          summary.get().outputQuotaExceeded(taskPath, suite.getName());
+          taskLogger.warn(
+              String.format(
+                  Locale.ROOT,
+                  "WARNING: Test %s exceeded the output quota, %,d bytes of output dropped.",
+                  suite.getName(),
+                  outputHandler.dropped()));
+        }
+
         long length = outputHandler.length();
         if (length > WARN_OUTPUT_SIZE_LIMIT) {
           taskLogger.warn(
@@ -94,22 +261,33 @@ class ErrorReportingTestListener implements TestOutputListener, TestListener {
         }
       }
 
-      boolean echoOutput = Objects.equals(result.getResultType(), TestResult.ResultType.FAILURE);
+      // Suites that only repeat failures already reported for other suites are summarized
+      // at the end of the task instead.
+      boolean echoOutput =
+          Objects.equals(result.getResultType(), TestResult.ResultType.FAILURE)
+              && reportedFailures.getOrDefault(key, true);
+      boolean hung = hungSuites.remove(key);
+      Path outputLog = outputsDir.resolve(getOutputLogName(suite));
 
-      // If the test suite failed, report output.
-      if (echoOutput) {
+      // Save the output of a failing or hung suite to disk.
+      if (echoOutput || hung) {
         Files.createDirectories(outputsDir);
-        Path outputLog = outputsDir.resolve(getOutputLogName(suite));
-
-        // Save the output of a failing test to disk.
-        try (Writer w = Files.newBufferedWriter(outputLog, StandardCharsets.UTF_8)) {
+        try (FileChannel out =
+            FileChannel.open(
+                outputLog,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
           if (outputHandler != null) {
-            outputHandler.copyTo(w);
+            outputHandler.copyTo(out);
           }
         }
+      }
 
+      // If the test suite failed, report output.
+      if (echoOutput) {
         if (!verboseMode) {
-          if (!taskLogger.isEnabled(LogLevel.LIFECYCLE) || styledOut == null) {
+          if (!taskLogger.isEnabled(LogLevel.LIFECYCLE)) {
             taskLogger.error(
                 String.join(
                     "\n    ",
@@ -119,59 +297,149 @@ class ErrorReportingTestListener implements TestOutputListener, TestListener {
                         "reproduce with: " + reproduceLineExtension.getGradleReproLine(suite),
                         "full output copied below: ")));
             if (fullOutputOnErrorMode) {
-              taskLogger.error(Files.readString(outputLog, StandardCharsets.UTF_8));
+              TestsConsoleService.forEachChunk(outputLog, taskLogger::error);
             }
           } else {
-            synchronized (styledOut) {
-              styledOut.append("\n");
-              styledOut
-                  .append(suite.getDisplayName())
-                  .append(" > ")
-                  .style(StyledTextOutput.Style.Failure)
-                  .append("TESTS FAILED\n")
-                  .style(StyledTextOutput.Style.Normal);
-
-              if (reproduceLineExtension != null) {
-                styledOut
-                    .append("    reproduce with: ")
-                    .style(StyledTextOutput.Style.Success)
-                    .append(reproduceLineExtension.getGradleReproLine(suite))
-                    .style(StyledTextOutput.Style.Normal)
-                    .append("\n");
-              }
-
-              styledOut
-                  .append("    test suite's output: ")
-                  .style(StyledTextOutput.Style.Success)
-                  .append(outputLog.toString())
-                  .style(StyledTextOutput.Style.Normal);
-
-              if (!fullOutputOnErrorMode && Files.size(outputLog) > WARN_OUTPUT_SIZE_LIMIT) {
-                styledOut.append(
-                    " (too large to display here: " + Files.size(outputLog) + " bytes).\n");
-              } else {
-                styledOut.append(" (copied below):\n");
-                styledOut.style(StyledTextOutput.Style.Info);
-                styledOut.append(Files.readString(outputLog, StandardCharsets.UTF_8));
-              }
-            }
+            console
+                .get()
+                .reportFailedSuite(
+                    styling.create(),
+                    suite.getDisplayName(),
+                    reproduceLineExtension == null
+                        ? null
+                        : reproduceLineExtension.getGradleReproLine(suite),
+                    outputLog,
+                    fullOutputOnErrorMode ? Long.MAX_VALUE : WARN_OUTPUT_SIZE_LIMIT);
           }
         }
       }
     } catch (IOException e) {
       throw new UncheckedIOException(e);
     } finally {
+      reportedFailures.remove(key);
       OutputHandler handler = outputHandlers.remove(key);
       if (handler != null) {
         try {
           handler.close();
         } catch (IOException e) {
-          taskLogger.error("Failed to close output handler for: " + key, e);
+          taskLogger.error("Failed to close output handler for: " + suite.getName(), e);
         }
       }
     }
   }
 
+  private synchronized void startWatchdog() {
+    if (watchdogTimeout > 0 && watchdog == null) {
+      watchdog = new ForkWatchdog(watchdogTimeout, watchdogKill, this::onHang);
+    }
+  }
+
+  private synchronized void closeWatchdog() {
+    if (watchdog != null) {
+      watchdog.close();
+      watchdog = null;
+    }
+  }
+
+  private void watchdogActivity(TestDescriptor descriptor, boolean suiteCompleted) {
+    ForkWatchdog watchdog = this.watchdog;
+    if (watchdog != null) {
+      watchdog.activity(descriptor, suiteCompleted);
+    }
+  }
+
+  /** Append the thread dump of a hung fork to the output of the suite it was running. */
+  private void onHang(String executor, TestDescriptor suite, long idleMillis, String threadDump) {
+    String message =
+        String.format(
+            Locale.ROOT,
+            "WATCHDOG: %s produced no test events for %d seconds.%n%s",
+            executor,
+            TimeUnit.MILLISECONDS.toSeconds(idleMillis),
+            threadDump);
+
+    if (suite == null) {
+      taskLogger.warn(message);
+      return;
+    }
+
+    Object key = keyOf(suite);
+    Runnable appendDump =
+        () -> {
+          synchronized (runningSuites) {
+            // The suite may have completed since the watchdog noticed it (drop the dump then).
+            if (!runningSuites.contains(key)) {
+              return;
+            }
+            hungSuites.add(key);
+            handlerFor(suite).write(message);
+          }
+          taskLogger.warn(
+              "WARNING: {} ({}) produced no test events for {} seconds, thread dump in: {}",
+              suite.getName(),
+              executor,
+              TimeUnit.MILLISECONDS.toSeconds(idleMillis),
+              outputsDir.resolve(getOutputLogName(suite)));
+        };
+    if (asyncOutput) {
+      outputPipeline().submit(key, appendDump);
+    } else {
+      appendDump.run();
+    }
+  }
+
+  /** Periodically echo complete lines of suites that stopped writing (in verbose mode). */
+  private synchronized void startVerboseEchoTimer() {
+    if (verboseEchoTimer == null) {
+      verboseEchoTimer =
+          Executors.newSingleThreadScheduledExecutor(
+              r -> {
+                Thread t = new Thread(r, "test-output-echo");
+                t.setDaemon(true);
+                return t;
+              });
+      long period = StdOutTeeWriter.MAX_BLOCK_DELAY / 2;
+      verboseEchoTimer.scheduleWithFixedDelay(
+          () -> {
+            for (OutputHandler handler : outputHandlers.values()) {
+              try {
+                handler.emitPending();
+              } catch (RuntimeException | IOException e) {
+                taskLogger.warn("Failed to echo test output.", e);
+              }
+            }
+          },
+          period,
+          period,
+          TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private synchronized void closeVerboseEchoTimer() {
+    if (verboseEchoTimer != null) {
+      verboseEchoTimer.shutdownNow();
+      verboseEchoTimer = null;
+    }
+  }
+
+  private synchronized void closeOutputPipeline() {
+    if (outputPipeline != null) {
+      outputPipeline.close();
+      outputPipeline = null;
+    }
+  }
+
+  private synchronized void closeSpillArena() {
+    if (spillArena != null) {
+      try {
+        spillArena.close();
+      } catch (IOException e) {
+        taskLogger.error("Failed to close the spill arena.", e);
+      }
+      spillArena = null;
+    }
+  }
+
   private static Pattern SANITIZE = Pattern.compile("[^a-zA-Z .\\-_0-9]+");
 
   public static String getOutputLogName(TestDescriptor suite) {
@@ -180,6 +448,16 @@ class ErrorReportingTestListener implements TestOutputListener, TestListener {
 
   @Override
   public void afterTest(TestDescriptor testDescriptor, TestResult result) {
+    watchdogActivity(testDescriptor, false);
+    if (asyncOutput) {
+      outputPipeline()
+          .submit(keyOf(suiteOf(testDescriptor)), () -> recordFailure(testDescriptor, result));
+    } else {
+      recordFailure(testDescriptor, result);
+    }
+  }
+
+  private void recordFailure(TestDescriptor testDescriptor, TestResult result) {
     // Include the failure exception stacktrace(s) in the test's output log.
     if (result.getResultType() == TestResult.ResultType.FAILURE) {
       OutputHandler outputHandler = handlerFor(testDescriptor);
@@ -190,53 +468,129 @@ class ErrorReportingTestListener implements TestOutputListener, TestListener {
               + testDescriptor.getDisplayName()
               + " FAILED\n");
       if (!result.getExceptions().isEmpty()) {
-        String message = formatter.format(testDescriptor, result.getExceptions());
-        outputHandler.write("Exception:\n");
-        outputHandler.write(message);
+        boolean report =
+            failureGroups()
+                .add(testDescriptor.getClassName(), result.getExceptions().getFirst());
+        reportedFailures.merge(keyOf(suiteOf(testDescriptor)), report, Boolean::logicalOr);
+        if (report) {
+          String message = formatter.format(testDescriptor, result.getExceptions());
+          outputHandler.write("Exception:\n");
+          outputHandler.write(message);
+        }
       }
       outputHandler.write("\n");
     }
   }
 
-  private OutputHandler handlerFor(TestDescriptor descriptor) {
-    // Attach output of leaves (individual tests) to their parent.
-    if (!descriptor.isComposite()) {
-      descriptor = descriptor.getParent();
+  /** Summarize failures repeated in more suites than were reported in full. */
+  private void reportFailureGroups() {
+    FailureGroups groups;
+    synchronized (this) {
+      groups = failureGroups;
+      failureGroups = null;
     }
-    return outputHandlers.computeIfAbsent(TestKey.of(descriptor), (key) -> new OutputHandler());
-  }
+    if (groups == null || groups.truncatedGroups().isEmpty()) {
+      return;
+    }
+
+    var report = new StringBuilder();
+    for (var group : groups.truncatedGroups()) {
+      var suites = group.suites.stream().toList();
+      var lines = new ArrayList<String>();
+      lines.add(
+          String.format(
+              Locale.ROOT,
+              "%d suites (%d tests) failed with the same exception, %d reported above: %s",
+              suites.size(),
+              group.failures,
+              group.reported.size(),
+              group.summary));
+      for (String s : suites.subList(0, Math.min(suites.size(), MAX_GROUP_SUITES_LISTED))) {
+        lines.add(s);
+      }
+      if (suites.size() > MAX_GROUP_SUITES_LISTED) {
+        lines.add("... and " + (suites.size() - MAX_GROUP_SUITES_LISTED) + " more");
+      }
+      taskLogger.error(String.join("\n    ", lines));
 
-  public static class TestKey {
-    private final String key;
+      report.append(lines.getFirst()).append('\n');
+      suites.forEach(s -> report.append("  ").append(s).append('\n'));
+    }
 
-    private TestKey(String key) {
-      this.key = key;
+    Path reportFile = outputsDir.resolve(FAILURE_GROUPS_FILE);
+    try {
+      Files.createDirectories(outputsDir);
+      Files.writeString(reportFile, report);
+      taskLogger.error("All suites with repeated failures are listed in: " + reportFile);
+    } catch (IOException e) {
+      taskLogger.error("Failed to write " + reportFile, e);
     }
+  }
 
-    public static TestKey of(TestDescriptor d) {
-      StringBuilder key = new StringBuilder();
-      key.append(d.getClassName());
-      key.append("::");
-      key.append(d.getName());
-      key.append("::");
-      key.append(d.getParent() == null ? "-" : d.getParent().toString());
-      return new TestKey(key.toString());
+  private OutputHandler handlerFor(TestDescriptor descriptor) {
+    // Attach output of individual tests (possibly running concurrently) to their suite.
+    descriptor = suiteOf(descriptor);
+    Object key = keyOf(descriptor);
+    OutputHandler handler = outputHandlers.get(key);
+    if (handler == null) {
+      String label = descriptor.getName();
+      handler = outputHandlers.computeIfAbsent(key, (k) -> new OutputHandler(label));
     }
+    return handler;
+  }
 
-    @Override
-    public boolean equals(Object o) {
-      return o != null && o.getClass() == this.getClass() && Objects.equals(((TestKey) o).key, key);
+  /**
+   * The top-level suite (test class) a descriptor belongs to: the child of a test executor, or of
+   * the root if there's no executor.
+   */
+  static TestDescriptor suiteOf(TestDescriptor descriptor) {
+    if (!descriptor.isComposite() && descriptor.getParent() != null) {
+      descriptor = descriptor.getParent();
     }
+    for (TestDescriptor d = descriptor; d.getParent() != null; d = d.getParent()) {
+      TestDescriptor parent = d.getParent();
+      if (parent.getParent() == null || ForkWatchdog.isExecutor(parent)) {
+        return d;
+      }
+    }
+    return descriptor;
+  }
 
-    @Override
-    public int hashCode() {
-      return key.hashCode();
+  /**
+   * Returns a cheap key identifying the descriptor. Gradle's descriptors carry a unique id; other
+   * descriptors are compared by identity.
+   */
+  static Object keyOf(TestDescriptor d) {
+    if (d instanceof TestDescriptorInternal internal) {
+      return internal.getId();
     }
+    return d;
+  }
 
-    @Override
-    public String toString() {
-      return key;
+  /** The length of a string encoded as UTF-8, without encoding it. */
+  private static long utf8Length(String s) {
+    long length = 0;
+    for (int i = 0, max = s.length(); i < max; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isSurrogate(c)) {
+        if (Character.isHighSurrogate(c)
+            && i + 1 < max
+            && Character.isLowSurrogate(s.charAt(i + 1))) {
+          length += 4;
+          i++;
+        } else {
+          // Unpaired surrogates are replaced with '?'.
+          length += 1;
+        }
+      } else {
+        length += 3;
+      }
     }
+    return length;
   }
 
   private class OutputHandler implements Closeable {
@@ -244,6 +598,7 @@ class ErrorReportingTestListener implements TestOutputListener, TestListener {
     private static final int MAX_LINE_WIDTH = 1024 * 4;
 
     private final SpillWriter buffer;
+    private final Writer sink;
 
     // internal stream.
     private final PrefixedWriter sint;
@@ -255,21 +610,19 @@ class ErrorReportingTestListener implements TestOutputListener, TestListener {
     // last used stream (so that we can flush it properly and prefixes are not screwed up).
     private PrefixedWriter last;
 
-    public OutputHandler() {
-      buffer =
-          new SpillWriter(
-              () -> {
-                try {
-                  Files.createDirectories(spillDir);
-                  return Files.createTempFile(spillDir, "spill-", ".tmp");
-                } catch (IOException e) {
-                  throw new UncheckedIOException(e);
-                }
-              });
+    // all output received from the test (in UTF-8 bytes) and how much of it was dropped.
+    private long received;
+    private long dropped;
+    private boolean overQuota;
+    private boolean closed;
+
+    public OutputHandler(String label) {
+      buffer = new SpillWriter(spillArena(), memoryBudget());
 
-      Writer sink = buffer;
       if (verboseMode) {
-        sink = new StdOutTeeWriter(buffer);
+        sink = new StdOutTeeWriter(buffer, label);
+      } else {
+        sink = buffer;
       }
 
       sint = new PrefixedWriter("   > ", sink, MAX_LINE_WIDTH);
@@ -278,21 +631,48 @@ class ErrorReportingTestListener implements TestOutputListener, TestListener {
       last = sint;
     }
 
-    public void write(TestOutputEvent event) {
+    public synchronized void write(TestOutputEvent event) {
+      String message = event.getMessage();
+      long bytes = utf8Length(message);
+      received += bytes;
+      long totalOutput = taskOutput.addAndGet(bytes);
+      if (overQuota
+          || (suiteOutputQuota > 0 && received > suiteOutputQuota)
+          || (taskOutputQuota > 0 && totalOutput > taskOutputQuota)) {
+        if (!overQuota) {
+          overQuota = true;
+          write(sint, "[output quota exceeded, further output of this suite is dropped]\n");
+        }
+        dropped += bytes;
+        return;
+      }
+
       write(
-          (event.getDestination() == TestOutputEvent.Destination.StdOut ? sout : serr),
-          event.getMessage());
+          (event.getDestination() == TestOutputEvent.Destination.StdOut ? sout : serr), message);
+    }
+
+    public synchronized long received() {
+      return received;
+    }
+
+    public synchronized long dropped() {
+      return dropped;
+    }
+
+    public synchronized boolean isOverQuota() {
+      return overQuota;
     }
 
     public void write(String message) {
       write(sint, message);
     }
 
-    public long length() throws IOException {
+    public synchronized long length() throws IOException {
       return buffer.length();
     }
 
-    private void write(PrefixedWriter out, String message) {
+    // The watchdog writes from its own thread.
+    private synchronized void write(PrefixedWriter out, String message) {
       try {
         if (out != last) {
           last.completeLine();
@@ -304,20 +684,29 @@ class ErrorReportingTestListener implements TestOutputListener, TestListener {
       }
     }
 
-    public void copyTo(Writer out) throws IOException {
+    public synchronized void copyTo(WritableByteChannel out) throws IOException {
       flush();
       buffer.copyTo(out);
     }
 
-    public void flush() throws IOException {
+    public synchronized void flush() throws IOException {
       sout.completeLine();
       serr.completeLine();
       buffer.flush();
     }
 
+    public synchronized void emitPending() throws IOException {
+      if (!closed && sink instanceof StdOutTeeWriter tee) {
+        tee.emitPending();
+      }
+    }
+
     @Override
-    public void close() throws IOException {
-      buffer.close();
+    public synchronized void close() throws IOException {
+      closed = true;
+      sout.completeLine();
+      serr.completeLine();
+      sink.close();
     }
   }
 }
@@ -0,0 +1,105 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * A persistent store of suites (and the randomization seed they failed with) that failed in
+ * previous runs of a single test task. A suite is removed from the store once it passes.
+ */
+class FailedSuites {
+  private static final ObjectMapper MAPPER =
+      new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+  private final Path file;
+  private final TreeMap<String, String> seeds;
+
+  private FailedSuites(Path file, TreeMap<String, String> seeds) {
+    this.file = file;
+    this.seeds = seeds;
+  }
+
+  /** Load failed suites from a given file. A missing or corrupted file yields an empty store. */
+  public static FailedSuites load(Path file) {
+    TreeMap<String, String> seeds = new TreeMap<>();
+    if (Files.isRegularFile(file)) {
+      try {
+        seeds.putAll(MAPPER.readValue(file.toFile(), new TypeReference<Map<String, String>>() {}));
+      } catch (IOException e) {
+        // Ignore, we'll just run everything.
+      }
+    }
+    return new FailedSuites(file, seeds);
+  }
+
+  /**
+   * Load failed suites from the (already read) content of a given file. Missing ({@code null}) or
+   * corrupted content yields an empty store.
+   */
+  public static FailedSuites load(Path file, String content) {
+    TreeMap<String, String> seeds = new TreeMap<>();
+    if (content != null) {
+      try {
+        seeds.putAll(MAPPER.readValue(content, new TypeReference<Map<String, String>>() {}));
+      } catch (IOException e) {
+        // Ignore, we'll just run everything.
+      }
+    }
+    return new FailedSuites(file, seeds);
+  }
+
+  public synchronized void failed(String suiteName, String seed) {
+    seeds.put(suiteName, seed);
+  }
+
+  public synchronized void passed(String suiteName) {
+    seeds.remove(suiteName);
+  }
+
+  /** Failed suites and the seed each of them failed with. */
+  public synchronized Map<String, String> asMap() {
+    return Collections.unmodifiableMap(new TreeMap<>(seeds));
+  }
+
+  /** Drop suites that don't match the predicate (for example, deleted classes). */
+  public synchronized boolean retainIf(Predicate<String> keep) {
+    return seeds.keySet().removeIf(keep.negate());
+  }
+
+  public synchronized boolean isEmpty() {
+    return seeds.isEmpty();
+  }
+
+  /** Failed suites grouped by the seed they failed with. */
+  public synchronized Map<String, List<String>> bySeed() {
+    return seeds.entrySet().stream()
+        .collect(
+            Collectors.groupingBy(
+                Map.Entry::getValue,
+                TreeMap::new,
+                Collectors.mapping(Map.Entry::getKey, Collectors.toList())));
+  }
+
+  public synchronized void save() {
+    try {
+      Files.createDirectories(file.getParent());
+      Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+      MAPPER.writeValue(tmp.toFile(), seeds);
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import java.nio.file.Path;
+import org.gradle.api.tasks.testing.TestDescriptor;
+import org.gradle.api.tasks.testing.TestListener;
+import org.gradle.api.tasks.testing.TestResult;
+
+/**
+ * Records suites that failed (and forgets suites that passed) along with the randomization seed
+ * they ran with, and persists them once the task completes.
+ */
+class FailedSuitesListener implements TestListener {
+  private final Path historyFile;
+  private volatile String seed;
+  private transient FailedSuites failedSuites;
+  private transient volatile boolean unrecordedFailures;
+
+  public FailedSuitesListener(Path historyFile, String seed) {
+    this.historyFile = historyFile;
+    this.seed = seed;
+  }
+
+  /** Change the seed recorded for failed suites (when the task runs with a different seed). */
+  public void setSeed(String seed) {
+    this.seed = seed;
+  }
+
+  /**
+   * Whether the last run had failures not attributed to any suite, for example a crashed or exited
+   * test JVM. Such failures are not recorded and can't be rerun.
+   */
+  public boolean hasUnrecordedFailures() {
+    return unrecordedFailures;
+  }
+
+  @Override
+  public synchronized void beforeSuite(TestDescriptor suite) {
+    if (suite.getParent() == null) {
+      failedSuites = FailedSuites.load(historyFile);
+      unrecordedFailures = false;
+    }
+  }
+
+  @Override
+  public void afterSuite(TestDescriptor suite, TestResult result) {
+    FailedSuites failedSuites;
+    synchronized (this) {
+      failedSuites = this.failedSuites;
+    }
+    if (failedSuites == null) {
+      return;
+    }
+
+    if (suite.getClassName() == null
+        && result.getResultType() == TestResult.ResultType.FAILURE
+        && !result.getExceptions().isEmpty()) {
+      unrecordedFailures = true;
+    }
+
+    if (suite.getParent() == null) {
+      failedSuites.save();
+    } else if (suite.getClassName() != null && ErrorReportingTestListener.suiteOf(suite) == suite) {
+      // Only top-level suites are recorded, nested containers are rerun with their suite.
+      switch (result.getResultType()) {
+        case FAILURE -> failedSuites.failed(suite.getClassName(), seed);
+        case SUCCESS -> failedSuites.passed(suite.getClassName());
+        case SKIPPED -> {}
+      }
+    }
+  }
+
+  @Override
+  public void beforeTest(TestDescriptor testDescriptor) {}
+
+  @Override
+  public void afterTest(TestDescriptor testDescriptor, TestResult result) {
+    if (result.getResultType() == TestResult.ResultType.FAILURE
+        && ErrorReportingTestListener.suiteOf(testDescriptor).getClassName() == null) {
+      unrecordedFailures = true;
+    }
+  }
+}
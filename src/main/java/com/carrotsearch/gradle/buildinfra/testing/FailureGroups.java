@@ -0,0 +1,117 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import org.gradle.internal.serialize.PlaceholderException;
+
+/**
+ * Groups test failures by a normalized exception signature so that many suites failing for the same
+ * reason (a broken shared fixture, for example) are reported once, with their count, instead of
+ * once per suite.
+ *
+ * <p>The signature consists of the exception types and messages of the whole cause chain (with
+ * numbers and identity hashes masked) and the stack frames above the failing suite's own code.
+ */
+class FailureGroups {
+  /** Stack frames (per exception in the cause chain) included in the signature. */
+  private static final int SIGNATURE_FRAMES = 10;
+
+  private static final Pattern VARIABLE_PARTS =
+      Pattern.compile("@[0-9a-fA-F]+|0x[0-9a-fA-F]+|\\d+");
+
+  /** A group of failures sharing the same signature. */
+  static class Group {
+    final String summary;
+    final Set<String> suites = new LinkedHashSet<>();
+    final Set<String> reported = new HashSet<>();
+    int failures;
+
+    private Group(String summary) {
+      this.summary = summary;
+    }
+  }
+
+  private final int reportedSuites;
+  private final Map<String, Group> groups = new LinkedHashMap<>();
+
+  /**
+   * @param reportedSuites The number of suites (per group) whose failures are reported in full or
+   *     zero to report all suites.
+   */
+  FailureGroups(int reportedSuites) {
+    this.reportedSuites = reportedSuites;
+  }
+
+  /**
+   * Record a failure of a test in the given suite.
+   *
+   * @return {@code true} if the failure should be reported in full: it is among the first {@code
+   *     reportedSuites} suites of its group.
+   */
+  synchronized boolean add(String suite, Throwable failure) {
+    String signature = signature(suite, failure);
+    Group group = groups.computeIfAbsent(signature, k -> new Group(summary(failure)));
+    group.failures++;
+    group.suites.add(suite);
+    if (reportedSuites <= 0 || group.reported.size() < reportedSuites) {
+      group.reported.add(suite);
+    }
+    return reportedSuites <= 0 || group.reported.contains(suite);
+  }
+
+  /** Groups with more suites than were reported in full, in the order they first failed. */
+  synchronized List<Group> truncatedGroups() {
+    if (reportedSuites <= 0) {
+      return List.of();
+    }
+    return groups.values().stream().filter(g -> g.suites.size() > reportedSuites).toList();
+  }
+
+  private static String summary(Throwable failure) {
+    String message = failure.getMessage();
+    String summary = className(failure) + (message == null ? "" : ": " + message);
+    int newline = summary.indexOf('\n');
+    return newline >= 0 ? summary.substring(0, newline) + " ..." : summary;
+  }
+
+  /**
+   * The class name of an exception. Exceptions that Gradle can't deserialize in the build process
+   * are replaced with placeholders which carry the original class name.
+   */
+  private static String className(Throwable t) {
+    return t instanceof PlaceholderException placeholder
+        ? placeholder.getExceptionClassName()
+        : t.getClass().getName();
+  }
+
+  static String signature(String suite, Throwable failure) {
+    var sb = new StringBuilder();
+    Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (Throwable t = failure; t != null && seen.add(t); t = t.getCause()) {
+      sb.append(className(t));
+      if (t.getMessage() != null) {
+        sb.append(": ").append(VARIABLE_PARTS.matcher(t.getMessage()).replaceAll("#"));
+      }
+      sb.append('\n');
+
+      int frames = 0;
+      for (StackTraceElement e : t.getStackTrace()) {
+        // Frames of the suite itself differ across suites sharing the same failure.
+        if (frames++ >= SIGNATURE_FRAMES
+            || (suite != null && e.getClassName().startsWith(suite))) {
+          break;
+        }
+        sb.append("  at ").append(e.getClassName()).append('.').append(e.getMethodName());
+        sb.append('\n');
+      }
+    }
+    return sb.toString();
+  }
+}
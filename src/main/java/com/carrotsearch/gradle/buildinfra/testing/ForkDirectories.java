@@ -0,0 +1,264 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import org.gradle.api.file.RegularFile;
+import org.gradle.api.tasks.Internal;
+import org.gradle.jvm.toolchain.JavaInstallationMetadata;
+import org.gradle.jvm.toolchain.JavaLauncher;
+
+/**
+ * Per-fork working and temporary directories for test JVMs.
+ *
+ * <p>Gradle starts all forks of a test task in the same working directory and with the same system
+ * properties, so per-fork directories are set up by a small launcher script that Gradle runs
+ * instead of {@code java}. The script creates {@code fork-<n>} subdirectories of the working and
+ * temporary directory (where {@code n} is the number of Gradle's test executor), records the
+ * JVM's pid next to them and starts the JVM in these directories.
+ */
+class ForkDirectories {
+  static final String FORK_DIR_PREFIX = "fork-";
+  private static final String PID_SUFFIX = ".pid";
+  private static final String STALE_PREFIX = ".stale-";
+  private static final String EXECUTOR_PREFIX = "Gradle Test Executor ";
+  private static final AtomicLong STALE_COUNTER = new AtomicLong();
+
+  /** A java launcher that runs the fork directories script instead of the actual executable. */
+  static class Launcher implements JavaLauncher {
+    private final JavaLauncher delegate;
+    private final RegularFile script;
+
+    Launcher(JavaLauncher delegate, RegularFile script) {
+      this.delegate = delegate;
+      this.script = script;
+    }
+
+    @Override
+    public JavaInstallationMetadata getMetadata() {
+      return delegate.getMetadata();
+    }
+
+    @Override
+    public RegularFile getExecutablePath() {
+      return script;
+    }
+
+    /** The actual java executable. */
+    @Internal
+    public File getJavaExecutable() {
+      return delegate.getExecutablePath().getAsFile();
+    }
+  }
+
+  /** The fork directory of a test executor suite (named {@code Gradle Test Executor <n>}). */
+  static Optional<Path> forkDir(Path base, String executorName) {
+    if (executorName == null || !executorName.startsWith(EXECUTOR_PREFIX)) {
+      return Optional.empty();
+    }
+    return Optional.of(
+        base.resolve(FORK_DIR_PREFIX + executorName.substring(EXECUTOR_PREFIX.length())));
+  }
+
+  /** (Re)write the launcher script for the given java executable and base directories. */
+  static void writeScript(Path scriptFile, File java, Path cwdBase, Path tmpBase) {
+    String script =
+        String.join(
+            "\n",
+            "#!/bin/sh",
+            "# Starts test JVMs in their own working and temporary directories.",
+            "JAVA=" + shellQuote(java.getAbsolutePath()),
+            "CWD=" + shellQuote(cwdBase.toAbsolutePath().toString()),
+            "TMP=" + shellQuote(tmpBase.toAbsolutePath().toString()),
+            "for last; do :; done",
+            "case \"$last\" in",
+            "  *\"" + EXECUTOR_PREFIX + "\"*)",
+            "    fork=\"${last##* }\"",
+            "    fork=\"" + FORK_DIR_PREFIX + "${fork%\\'}\"",
+            // The pid goes first so that concurrent cleanups don't take the directories as stale.
+            "    echo $$ > \"$CWD/$fork" + PID_SUFFIX + "\" || exit 1",
+            "    mkdir -p \"$CWD/$fork\" \"$TMP/$fork\" || exit 1",
+            "    cd \"$CWD/$fork\" || exit 1",
+            "    exec \"$JAVA\" \"-Djava.io.tmpdir=$TMP/$fork\" \"$@\"",
+            "    ;;",
+            "esac",
+            "exec \"$JAVA\" \"$@\"",
+            "");
+    try {
+      Files.createDirectories(scriptFile.getParent());
+      if (Files.exists(scriptFile)
+          && Files.readString(scriptFile, StandardCharsets.UTF_8).equals(script)) {
+        return;
+      }
+      Path tmp = Files.createTempFile(scriptFile.getParent(), "java", ".tmp");
+      Files.writeString(tmp, script, StandardCharsets.UTF_8);
+      if (!tmp.toFile().setExecutable(true)) {
+        throw new IOException("Could not make the launcher script executable: " + tmp);
+      }
+      Files.move(tmp, scriptFile, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static String shellQuote(String value) {
+    return "'" + value.replace("'", "'\\''") + "'";
+  }
+
+  /**
+   * Remove fork directories of JVMs that are no longer running (forks of other test tasks may
+   * still be using theirs). Directories are moved aside and deleted in the background.
+   */
+  static void cleanStale(Path cwdBase, Path tmpBase) {
+    var stale = new ArrayList<Path>();
+    for (Path base : List.of(cwdBase, tmpBase)) {
+      for (Path dir : list(base)) {
+        String name = dir.getFileName().toString();
+        if (name.startsWith(STALE_PREFIX)) {
+          // Left over from an interrupted cleanup.
+          stale.add(dir);
+        } else if (name.startsWith(FORK_DIR_PREFIX)
+            && Files.isDirectory(dir)
+            && !isAlive(cwdBase.resolve(name + PID_SUFFIX))) {
+          stale.add(dir);
+        }
+      }
+    }
+
+    for (Path pidFile : list(cwdBase)) {
+      String name = pidFile.getFileName().toString();
+      if (name.startsWith(FORK_DIR_PREFIX) && name.endsWith(PID_SUFFIX) && !isAlive(pidFile)) {
+        try {
+          Files.deleteIfExists(pidFile);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    }
+
+    deleteInBackground(stale);
+  }
+
+  /**
+   * Move directories aside (so that they can be recreated right away) and delete them, in
+   * parallel, on a background thread.
+   */
+  static void deleteInBackground(List<Path> dirs) {
+    var moved = new ArrayList<Path>();
+    for (Path dir : dirs) {
+      String name = dir.getFileName().toString();
+      if (name.startsWith(STALE_PREFIX)) {
+        moved.add(dir);
+        continue;
+      }
+
+      // Pick up whatever an interrupted cleanup of this directory left.
+      for (Path sibling : list(dir.getParent())) {
+        if (sibling.getFileName().toString().startsWith(STALE_PREFIX + name + "-")) {
+          moved.add(sibling);
+        }
+      }
+
+      if (!Files.exists(dir)) {
+        continue;
+      }
+      Path target =
+          dir.resolveSibling(
+              STALE_PREFIX
+                  + name
+                  + "-"
+                  + System.nanoTime()
+                  + "-"
+                  + STALE_COUNTER.incrementAndGet());
+      try {
+        Files.move(dir, target, StandardCopyOption.ATOMIC_MOVE);
+        moved.add(target);
+      } catch (NoSuchFileException e) {
+        // Moved aside by a concurrent cleanup.
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    if (moved.isEmpty()) {
+      return;
+    }
+
+    Thread cleaner =
+        new Thread(
+            () -> moved.parallelStream().forEach(ForkDirectories::deleteRecursively),
+            "test-directories-cleaner");
+    cleaner.setDaemon(true);
+    cleaner.start();
+  }
+
+  /** Total size of regular files under a directory (0 if it doesn't exist). */
+  static long diskUsage(Path dir) {
+    if (!Files.isDirectory(dir)) {
+      return 0;
+    }
+    try (Stream<Path> files = Files.walk(dir)) {
+      return files.filter(Files::isRegularFile).mapToLong(ForkDirectories::size).sum();
+    } catch (IOException | UncheckedIOException e) {
+      // Files may come and go while tests are running.
+      return 0;
+    }
+  }
+
+  private static long size(Path file) {
+    try {
+      return Files.size(file);
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  private static boolean isAlive(Path pidFile) {
+    try {
+      if (!Files.isRegularFile(pidFile)) {
+        return false;
+      }
+      long pid = Long.parseLong(Files.readString(pidFile, StandardCharsets.UTF_8).trim());
+      return ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false);
+    } catch (IOException | NumberFormatException e) {
+      return false;
+    }
+  }
+
+  private static List<Path> list(Path dir) {
+    if (!Files.isDirectory(dir)) {
+      return List.of();
+    }
+    try (Stream<Path> files = Files.list(dir)) {
+      return files.toList();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static void deleteRecursively(Path path) {
+    try (Stream<Path> files = Files.walk(path)) {
+      files.sorted((a, b) -> b.getNameCount() - a.getNameCount()).forEach(ForkDirectories::delete);
+    } catch (IOException | UncheckedIOException e) {
+      // Best effort, whatever is left is picked up by the next cleanup.
+    }
+  }
+
+  private static void delete(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
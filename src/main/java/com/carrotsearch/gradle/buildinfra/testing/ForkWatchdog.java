@@ -0,0 +1,169 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.gradle.api.tasks.testing.TestDescriptor;
+
+/**
+ * Notices test forks that haven't produced any test events (including output) for a given time,
+ * takes thread dumps of them with {@code jcmd Thread.print} and optionally kills them.
+ */
+class ForkWatchdog implements Closeable {
+  private static final String EXECUTOR_PREFIX = "Gradle Test Executor ";
+
+  /** Receives the thread dumps of hung forks. */
+  interface HangListener {
+    /**
+     * @param suite The suite running in the fork or {@code null} if the fork hung between suites.
+     * @param threadDump The thread dump or a description of why it could not be taken.
+     */
+    void onHang(String executor, TestDescriptor suite, long idleMillis, String threadDump);
+  }
+
+  private static class Fork {
+    volatile long lastEvent = System.nanoTime();
+    volatile TestDescriptor suite;
+    long lastDump;
+  }
+
+  private final long timeoutMillis;
+  private final boolean kill;
+  private final HangListener listener;
+  private final Map<String, Fork> forks = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService scheduler;
+
+  public ForkWatchdog(long timeoutMillis, boolean kill, HangListener listener) {
+    this.timeoutMillis = timeoutMillis;
+    this.kill = kill;
+    this.listener = listener;
+    this.scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread t = new Thread(r, "test-fork-watchdog");
+              t.setDaemon(true);
+              return t;
+            });
+    long period = Math.max(1000, Math.min(timeoutMillis / 4, 10_000));
+    scheduler.scheduleWithFixedDelay(this::check, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /** Record an event of the fork the descriptor belongs to. */
+  public void activity(TestDescriptor descriptor, boolean suiteCompleted) {
+    TestDescriptor suite = null;
+    for (TestDescriptor d = descriptor; d != null; d = d.getParent()) {
+      if (d.getParent() != null && isExecutor(d.getParent())) {
+        suite = d;
+      }
+      if (isExecutor(d)) {
+        Fork fork = forks.computeIfAbsent(d.getName(), k -> new Fork());
+        fork.lastEvent = System.nanoTime();
+        fork.suite = suiteCompleted && suite == descriptor ? null : suite;
+        return;
+      }
+    }
+  }
+
+  /** The fork running the given executor suite has completed. */
+  public void forkCompleted(TestDescriptor executor) {
+    forks.remove(executor.getName());
+  }
+
+  static boolean isExecutor(TestDescriptor descriptor) {
+    return descriptor.getName().startsWith(EXECUTOR_PREFIX);
+  }
+
+  private void check() {
+    long now = System.nanoTime();
+    for (var e : forks.entrySet()) {
+      Fork fork = e.getValue();
+      long idleMillis = TimeUnit.NANOSECONDS.toMillis(now - fork.lastEvent);
+      // Dump again if the fork is still stuck after another timeout.
+      long sinceDumpMillis = TimeUnit.NANOSECONDS.toMillis(now - fork.lastDump);
+      if (idleMillis < timeoutMillis || (fork.lastDump != 0 && sinceDumpMillis < timeoutMillis)) {
+        continue;
+      }
+
+      fork.lastDump = now;
+      String executor = e.getKey();
+      Optional<ProcessHandle> process = findProcess(executor);
+      String dump = process.map(ForkWatchdog::threadDump).orElse("(JVM process not found)");
+      if (kill && process.isPresent()) {
+        process.get().destroyForcibly();
+        dump += "\nThe JVM (pid " + process.get().pid() + ") has been killed by the watchdog.\n";
+      }
+      if (process.isEmpty() || kill) {
+        forks.remove(executor);
+      }
+      listener.onHang(executor, fork.suite, idleMillis, dump);
+    }
+  }
+
+  /**
+   * Find the JVM of a test executor among the descendants of this process (the last argument of
+   * Gradle's test worker command line is the executor's name).
+   */
+  static Optional<ProcessHandle> findProcess(String executor) {
+    return ProcessHandle.current()
+        .descendants()
+        .filter(
+            p -> {
+              String[] args = p.info().arguments().orElse(new String[0]);
+              return args.length > 0
+                  && args[args.length - 1].replace("'", "").equals(executor)
+                  && p.info().command().map(c -> c.endsWith("java")).orElse(false);
+            })
+        .findFirst();
+  }
+
+  /** Take a thread dump with the {@code jcmd} of the JVM's own installation, if available. */
+  private static String threadDump(ProcessHandle process) {
+    Path jcmd =
+        process
+            .info()
+            .command()
+            .map(c -> Path.of(c).resolveSibling("jcmd"))
+            .filter(Files::isExecutable)
+            .orElse(Path.of(System.getProperty("java.home"), "bin", "jcmd"));
+    try {
+      Path out = Files.createTempFile("thread-dump", ".txt");
+      try {
+        var command = List.of(jcmd.toString(), Long.toString(process.pid()), "Thread.print");
+        Process jcmdProcess =
+            new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(out.toFile())
+                .start();
+        if (!jcmdProcess.waitFor(30, TimeUnit.SECONDS)) {
+          jcmdProcess.destroyForcibly();
+        }
+        return "Thread dump of pid "
+            + process.pid()
+            + ":\n"
+            + Files.readString(out, StandardCharsets.UTF_8);
+      } finally {
+        Files.deleteIfExists(out);
+      }
+    } catch (IOException e) {
+      return "Could not take a thread dump with " + jcmd + ": " + e;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return "Interrupted while taking a thread dump with " + jcmd + ".";
+    }
+  }
+
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+    forks.clear();
+  }
+}
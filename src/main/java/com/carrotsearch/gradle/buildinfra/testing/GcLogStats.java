@@ -0,0 +1,119 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Heap and GC statistics of test forks, parsed from unified GC logs ({@code
+ * -Xlog:gc,gc+heap+exit:file=...:uptime}).
+ */
+class GcLogStats {
+  static final String LOG_PREFIX = "gc-";
+
+  /** JVM options that produce the logs this class parses, one file per fork. */
+  static String logOption(Path dir) {
+    return "-Xlog:gc,gc+heap+exit:file=" + dir.resolve(LOG_PREFIX + "%p.log") + ":uptime";
+  }
+
+  /**
+   * Statistics of a single fork. {@code peakUsed} is the highest heap occupancy seen (before a
+   * collection or at exit), {@code peakLive} the highest occupancy right after a collection (an
+   * approximation of the live set) and {@code committed} the largest heap size the JVM committed.
+   */
+  public record Fork(
+      String pid,
+      long wallMillis,
+      int pauses,
+      double pauseMillis,
+      long peakUsed,
+      long peakLive,
+      long committed) {
+    public double gcShare() {
+      return wallMillis == 0 ? 0 : pauseMillis / wallMillis;
+    }
+  }
+
+  private static final Pattern UPTIME = Pattern.compile("^\\[([\\d.]+)s\\]");
+  private static final Pattern PAUSE = Pattern.compile("\\bPause\\b.* ([\\d.]+)ms$");
+  private static final Pattern HEAP_CHANGE =
+      Pattern.compile("(\\d+)([KMG])->(\\d+)([KMG])\\((\\d+)([KMG])\\)");
+  private static final Pattern EXIT_HEAP = Pattern.compile("total (\\d+)K, used (\\d+)K");
+
+  /** Parse all fork logs in a directory. */
+  public static List<Fork> parseAll(Path dir) throws IOException {
+    var forks = new ArrayList<Fork>();
+    if (!Files.isDirectory(dir)) {
+      return forks;
+    }
+    try (Stream<Path> files = Files.list(dir)) {
+      for (Path file : files.toList()) {
+        String name = file.getFileName().toString();
+        if (name.startsWith(LOG_PREFIX) && name.endsWith(".log")) {
+          forks.add(parse(name.substring(LOG_PREFIX.length(), name.length() - 4), file));
+        }
+      }
+    }
+    forks.sort(Comparator.comparing(Fork::pid));
+    return forks;
+  }
+
+  static Fork parse(String pid, Path file) throws IOException {
+    double uptime = 0;
+    int pauses = 0;
+    double pauseMillis = 0;
+    long peakUsed = 0;
+    long peakLive = 0;
+    long committed = 0;
+
+    for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+      Matcher m = UPTIME.matcher(line);
+      if (m.find()) {
+        uptime = Math.max(uptime, Double.parseDouble(m.group(1)));
+      }
+
+      m = HEAP_CHANGE.matcher(line);
+      if (m.find()) {
+        peakUsed = Math.max(peakUsed, bytes(m.group(1), m.group(2)));
+        peakLive = Math.max(peakLive, bytes(m.group(3), m.group(4)));
+        committed = Math.max(committed, bytes(m.group(5), m.group(6)));
+      }
+
+      m = PAUSE.matcher(line);
+      if (m.find()) {
+        pauses++;
+        pauseMillis += Double.parseDouble(m.group(1));
+      }
+
+      m = EXIT_HEAP.matcher(line);
+      if (m.find()) {
+        committed = Math.max(committed, Long.parseLong(m.group(1)) << 10);
+        peakUsed = Math.max(peakUsed, Long.parseLong(m.group(2)) << 10);
+      }
+    }
+
+    return new Fork(
+        pid, Math.round(uptime * 1000), pauses, pauseMillis, peakUsed, peakLive, committed);
+  }
+
+  private static long bytes(String value, String unit) {
+    long v = Long.parseLong(value);
+    return switch (unit) {
+      case "K" -> v << 10;
+      case "M" -> v << 20;
+      default -> v << 30;
+    };
+  }
+
+  static String formatMb(long bytes) {
+    return String.format(Locale.ROOT, "%d MB", bytes >> 20);
+  }
+}
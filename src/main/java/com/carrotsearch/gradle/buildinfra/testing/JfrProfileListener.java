@@ -0,0 +1,84 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.tasks.testing.TestDescriptor;
+import org.gradle.api.tasks.testing.TestListener;
+import org.gradle.api.tasks.testing.TestResult;
+
+/**
+ * Summarizes the JFR recordings of a task's test forks (see {@link JfrProfileSummary}) once all
+ * forks have completed, whether the tests passed or not.
+ */
+class JfrProfileListener implements TestListener {
+  private static final Logger LOGGER = Logging.getLogger(JfrProfileListener.class);
+
+  private final String taskPath;
+  private final Path recordingsDir;
+  private final int topN;
+
+  public JfrProfileListener(String taskPath, Path recordingsDir, int topN) {
+    this.taskPath = taskPath;
+    this.recordingsDir = recordingsDir;
+    this.topN = topN;
+  }
+
+  @Override
+  public void beforeSuite(TestDescriptor suite) {}
+
+  @Override
+  public void afterSuite(TestDescriptor suite, TestResult result) {
+    if (suite.getParent() == null) {
+      report();
+    }
+  }
+
+  private void report() {
+    // No forks were started (for example, no tests matched).
+    if (!Files.isDirectory(recordingsDir)) {
+      return;
+    }
+
+    List<Path> recordings;
+    try (var files = Files.list(recordingsDir)) {
+      recordings =
+          files.filter(p -> p.getFileName().toString().endsWith(".jfr")).sorted().toList();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    // A JVM that crashed or was killed may leave a truncated recording behind.
+    var summary = new JfrProfileSummary();
+    int parsed = 0;
+    for (Path recording : recordings) {
+      try {
+        summary.add(recording);
+        parsed++;
+      } catch (IOException | RuntimeException e) {
+        LOGGER.warn("{}: skipping unreadable JFR recording {}: {}", taskPath, recording, e);
+      }
+    }
+
+    if (summary.isEmpty()) {
+      return;
+    }
+
+    LOGGER.lifecycle(
+        "{}: profile of {} test JVM(s), recordings in {}\n{}",
+        taskPath,
+        parsed,
+        recordingsDir,
+        summary.format(topN));
+  }
+
+  @Override
+  public void beforeTest(TestDescriptor testDescriptor) {}
+
+  @Override
+  public void afterTest(TestDescriptor testDescriptor, TestResult result) {}
+}
@@ -0,0 +1,111 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedMethod;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Merges JFR recordings of test forks into a summary of the hottest methods (by execution samples
+ * with the method at the top of the stack) and the allocation sites that allocated the most memory
+ * (by the sampled allocation weight).
+ */
+class JfrProfileSummary {
+  private final Map<String, Long> methodSamples = new HashMap<>();
+  private final Map<String, Long> allocations = new HashMap<>();
+  private long totalSamples;
+  private long totalAllocated;
+
+  public void add(Path recording) throws IOException {
+    try (var file = new RecordingFile(recording)) {
+      while (file.hasMoreEvents()) {
+        RecordedEvent event = file.readEvent();
+        switch (event.getEventType().getName()) {
+          case "jdk.ExecutionSample" -> {
+            String frame = topFrame(event.getStackTrace());
+            if (frame != null) {
+              methodSamples.merge(frame, 1L, Long::sum);
+              totalSamples++;
+            }
+          }
+          case "jdk.ObjectAllocationSample" -> {
+            String frame = topFrame(event.getStackTrace());
+            if (frame != null) {
+              long weight = event.getLong("weight");
+              String site = frame + " (" + event.getClass("objectClass").getName() + ")";
+              allocations.merge(site, weight, Long::sum);
+              totalAllocated += weight;
+            }
+          }
+          default -> {}
+        }
+      }
+    }
+  }
+
+  public boolean isEmpty() {
+    return totalSamples == 0 && totalAllocated == 0;
+  }
+
+  public String format(int topN) {
+    var sb = new StringBuilder();
+    sb.append(
+        String.format(
+            Locale.ROOT, "Hot methods (%d execution samples, self time):%n", totalSamples));
+    for (var e : top(methodSamples, topN)) {
+      sb.append(
+          String.format(
+              Locale.ROOT,
+              "  %6.2f%% %8d  %s%n",
+              100.0 * e.getValue() / totalSamples,
+              e.getValue(),
+              e.getKey()));
+    }
+
+    sb.append(
+        String.format(
+            Locale.ROOT,
+            "Allocation sites (%.1f MB sampled):%n",
+            totalAllocated / (1024.0 * 1024.0)));
+    for (var e : top(allocations, topN)) {
+      sb.append(
+          String.format(
+              Locale.ROOT,
+              "  %6.2f%% %8.1f MB  %s%n",
+              100.0 * e.getValue() / totalAllocated,
+              e.getValue() / (1024.0 * 1024.0),
+              e.getKey()));
+    }
+    return sb.toString().stripTrailing();
+  }
+
+  private static List<Map.Entry<String, Long>> top(Map<String, Long> counts, int topN) {
+    return counts.entrySet().stream()
+        .sorted(
+            Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder())
+                .thenComparing(Map.Entry.comparingByKey()))
+        .limit(topN)
+        .toList();
+  }
+
+  private static String topFrame(RecordedStackTrace stackTrace) {
+    if (stackTrace == null) {
+      return null;
+    }
+    for (RecordedFrame frame : stackTrace.getFrames()) {
+      if (frame.isJavaFrame()) {
+        RecordedMethod method = frame.getMethod();
+        return method.getType().getName() + "." + method.getName();
+      }
+    }
+    return null;
+  }
+}
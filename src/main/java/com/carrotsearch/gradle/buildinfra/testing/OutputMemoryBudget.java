@@ -0,0 +1,29 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A memory budget (in bytes) shared by all in-memory output buffers of a single test task. */
+class OutputMemoryBudget {
+  private final long limit;
+  private final AtomicLong used = new AtomicLong();
+
+  public OutputMemoryBudget(long limit) {
+    this.limit = limit;
+  }
+
+  /** Try to reserve the given number of bytes. Returns {@code false} if the budget is exceeded. */
+  public boolean tryReserve(long bytes) {
+    long current;
+    do {
+      current = used.get();
+      if (current + bytes > limit) {
+        return false;
+      }
+    } while (!used.compareAndSet(current, current + bytes));
+    return true;
+  }
+
+  public void release(long bytes) {
+    used.addAndGet(-bytes);
+  }
+}
@@ -6,45 +6,116 @@ import java.io.Writer;
 /**
  * Prefixes every new line with a given string, synchronizing multiple streams to emit consistent
  * lines.
+ *
+ * <p>Bulk writes are scanned for line feeds and complete lines are passed to the sink as slices of
+ * the input; only incomplete lines are copied to the internal line buffer.
  */
 class PrefixedWriter extends Writer {
   Writer sink;
 
   private static final char LF = '\n';
+  private static final int SCRATCH_SIZE = 8 * 1024;
+
   private final String prefix;
-  private final StringBuilder lineBuffer = new StringBuilder();
+  private final char[] lineBuffer;
+  private int lineLength;
   private final int maxLineLength;
+  private char[] scratch;
 
   public PrefixedWriter(String prefix, Writer sink, int maxLineLength) {
     super(sink);
     this.sink = sink;
     this.prefix = prefix;
     this.maxLineLength = maxLineLength;
+    this.lineBuffer = new char[maxLineLength];
   }
 
   @Override
   public void write(int c) throws IOException {
-    if (lineBuffer.length() == maxLineLength || c == LF) {
-      sink.write(prefix);
-      sink.write(lineBuffer.toString());
-      sink.write(LF);
-
-      lineBuffer.setLength(0);
+    if (lineLength == maxLineLength || c == LF) {
+      emitLineBuffer();
       if (c != LF) {
-        lineBuffer.append((char) c);
+        lineBuffer[lineLength++] = (char) c;
       }
     } else {
-      lineBuffer.append((char) c);
+      lineBuffer[lineLength++] = (char) c;
     }
   }
 
   @Override
   public void write(char[] cbuf, int off, int len) throws IOException {
-    for (int i = off; i < off + len; i++) {
-      write(cbuf[i]);
+    final int end = off + len;
+    while (off < end) {
+      int lf = indexOfLf(cbuf, off, end);
+      int lineEnd = lf < 0 ? end : lf;
+
+      // Wrap the line while there is more than fits in the current line.
+      while (lineEnd - off > maxLineLength - lineLength) {
+        int chunk = maxLineLength - lineLength;
+        if (lineLength == 0) {
+          emit(cbuf, off, chunk);
+        } else {
+          append(cbuf, off, chunk);
+          emitLineBuffer();
+        }
+        off += chunk;
+      }
+
+      int remaining = lineEnd - off;
+      if (lf >= 0) {
+        if (lineLength == 0) {
+          emit(cbuf, off, remaining);
+        } else {
+          append(cbuf, off, remaining);
+          emitLineBuffer();
+        }
+        off = lf + 1;
+      } else {
+        append(cbuf, off, remaining);
+        off = end;
+      }
+    }
+  }
+
+  @Override
+  public void write(String str, int off, int len) throws IOException {
+    if (scratch == null) {
+      scratch = new char[SCRATCH_SIZE];
+    }
+    while (len > 0) {
+      int chunk = Math.min(len, scratch.length);
+      str.getChars(off, off + chunk, scratch, 0);
+      write(scratch, 0, chunk);
+      off += chunk;
+      len -= chunk;
     }
   }
 
+  private static int indexOfLf(char[] cbuf, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (cbuf[i] == LF) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private void append(char[] cbuf, int off, int len) {
+    System.arraycopy(cbuf, off, lineBuffer, lineLength, len);
+    lineLength += len;
+  }
+
+  private void emit(char[] cbuf, int off, int len) throws IOException {
+    sink.write(prefix);
+    sink.write(cbuf, off, len);
+    sink.write(LF);
+  }
+
+  private void emitLineBuffer() throws IOException {
+    emit(lineBuffer, 0, lineLength);
+    lineLength = 0;
+  }
+
   @Override
   public void flush() throws IOException {
     // don't pass flushes.
@@ -61,7 +132,7 @@ class PrefixedWriter extends Writer {
    * @throws IOException Propagated.
    */
   public void completeLine() throws IOException {
-    if (lineBuffer.length() > 0) {
+    if (lineLength > 0) {
       write(LF);
     }
   }
@@ -8,13 +8,18 @@ import org.apache.tools.ant.types.Commandline;
 import org.gradle.api.tasks.testing.TestDescriptor;
 
 public class ReproduceLineExtension {
-  private final String taskPath;
+  private String taskPath;
   private final List<String> extraArgs = new ArrayList<>();
 
   public ReproduceLineExtension(String taskPath) {
     this.taskPath = taskPath;
   }
 
+  /** Point reproduce lines at a different task (for example, the task whose tests are rerun). */
+  public void setTaskPath(String taskPath) {
+    this.taskPath = taskPath;
+  }
+
   public String getGradleReproLine(TestDescriptor descriptor) {
     var args = new ArrayList<String>();
     args.add("./gradlew");
@@ -37,6 +42,12 @@ public class ReproduceLineExtension {
     extraArgs.add("-P" + name + "=" + value);
   }
 
+  /** Replace the value of a previously added property (or add it). */
+  public void setGradleProperty(String name, String value) {
+    extraArgs.removeIf(arg -> arg.startsWith("-P" + name + "="));
+    addGradleProperty(name, value);
+  }
+
   public void addBuildOption(BuildOption buildOption) {
     if (!buildOption.isPresent()) {
       return;
@@ -0,0 +1,259 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A single, append-only spill file shared by all suites of a test task. The file is divided into
+ * fixed-size blocks and the output of each suite is stored in a {@link Segment}: a chain of blocks.
+ * Blocks of released segments are reused by subsequent segments, so the file only grows to the
+ * peak size of concurrently buffered output.
+ *
+ * <p>Segments can optionally retain only the head and tail of their output (rounded up to the block
+ * size). Blocks between the head and the tail are recycled as the output grows and replaced with a
+ * marker when the segment is copied.
+ */
+class SpillArena implements Closeable {
+  static final int BLOCK_SIZE = 32 * 1024;
+
+  private final Path dir;
+  private final int headBlocks;
+  private final int tailBlocks;
+  private Path file;
+  private FileChannel channel;
+
+  /** The number of blocks ever allocated (the file's length is at most this many blocks). */
+  private long allocated;
+
+  /** Block indexes available for reuse. */
+  private long[] free = new long[16];
+
+  private int freeCount;
+
+  public SpillArena(Path dir) {
+    this(dir, 0, 0);
+  }
+
+  /**
+   * @param retainHead The number of leading bytes of each segment to retain ({@code 0} and {@code
+   *     retainTail == 0} retains everything).
+   * @param retainTail The number of trailing bytes of each segment to retain.
+   */
+  public SpillArena(Path dir, long retainHead, long retainTail) {
+    this.dir = dir;
+    if (retainHead > 0 || retainTail > 0) {
+      this.headBlocks = Math.toIntExact((retainHead + BLOCK_SIZE - 1) / BLOCK_SIZE);
+      this.tailBlocks = Math.toIntExact(Math.max(1, (retainTail + BLOCK_SIZE - 1) / BLOCK_SIZE));
+    } else {
+      this.headBlocks = Integer.MAX_VALUE;
+      this.tailBlocks = 0;
+    }
+  }
+
+  public Segment newSegment() {
+    return new Segment();
+  }
+
+  private synchronized long allocateBlock() throws IOException {
+    if (channel == null) {
+      Files.createDirectories(dir);
+      file = Files.createTempFile(dir, "spill-", ".arena");
+      channel =
+          FileChannel.open(
+              file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+    }
+
+    if (freeCount > 0) {
+      return free[--freeCount];
+    }
+    return allocated++;
+  }
+
+  private synchronized void releaseBlocks(long[] blocks, int count) {
+    if (freeCount + count > free.length) {
+      free = Arrays.copyOf(free, Math.max(free.length * 2, freeCount + count));
+    }
+    System.arraycopy(blocks, 0, free, freeCount, count);
+    freeCount += count;
+  }
+
+  private FileChannel channel() {
+    synchronized (this) {
+      return channel;
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (channel != null) {
+      channel.close();
+      Files.deleteIfExists(file);
+      channel = null;
+      file = null;
+      allocated = 0;
+      freeCount = 0;
+    }
+  }
+
+  /** A single suite's output, stored as a chain of arena blocks. */
+  class Segment extends OutputStream {
+    private long[] blocks = new long[4];
+    private int blockCount;
+    private int lastBlockFill = BLOCK_SIZE;
+    private long length;
+    private long skipped;
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (lastBlockFill == BLOCK_SIZE) {
+          nextBlock();
+        }
+
+        int chunk = Math.min(len, BLOCK_SIZE - lastBlockFill);
+        long position = blocks[blockCount - 1] * BLOCK_SIZE + lastBlockFill;
+        ByteBuffer buffer = ByteBuffer.wrap(b, off, chunk);
+        FileChannel channel = channel();
+        while (buffer.hasRemaining()) {
+          position += channel.write(buffer, position);
+        }
+
+        lastBlockFill += chunk;
+        length += chunk;
+        off += chunk;
+        len -= chunk;
+      }
+    }
+
+    private void nextBlock() throws IOException {
+      long block;
+      if (blockCount - headBlocks == tailBlocks) {
+        // Recycle the oldest tail block.
+        block = blocks[headBlocks];
+        System.arraycopy(blocks, headBlocks + 1, blocks, headBlocks, tailBlocks - 1);
+        blockCount--;
+        skipped += BLOCK_SIZE;
+      } else {
+        block = allocateBlock();
+      }
+
+      if (blockCount == blocks.length) {
+        blocks = Arrays.copyOf(blocks, blocks.length * 2);
+      }
+      blocks[blockCount++] = block;
+      lastBlockFill = 0;
+    }
+
+    /** The total number of bytes written to this segment (including any skipped bytes). */
+    public long length() {
+      return length;
+    }
+
+    /**
+     * Transfer the segment's retained content to the target channel (without copying it to the
+     * heap). Blocks are cut at arbitrary bytes, so partial UTF-8 characters around the skipped
+     * region are skipped as well.
+     */
+    public void transferTo(WritableByteChannel target) throws IOException {
+      FileChannel channel = channel();
+      int headTrim = 0;
+      int tailTrim = 0;
+      if (skipped > 0) {
+        if (headBlocks > 0) {
+          headTrim = incompleteCharBytes(channel, (blocks[headBlocks - 1] + 1) * BLOCK_SIZE);
+        }
+        long tailCount = (headBlocks == blockCount - 1) ? lastBlockFill : BLOCK_SIZE;
+        tailTrim = continuationBytes(channel, blocks[headBlocks] * BLOCK_SIZE, tailCount);
+      }
+
+      for (int i = 0; i < blockCount; i++) {
+        long position = blocks[i] * BLOCK_SIZE;
+        long count = (i == blockCount - 1) ? lastBlockFill : BLOCK_SIZE;
+        if (skipped > 0 && i == headBlocks - 1) {
+          count -= headTrim;
+        }
+
+        if (i == headBlocks && skipped > 0) {
+          var marker =
+              StandardCharsets.UTF_8.encode(
+                  String.format(
+                      Locale.ROOT,
+                      "\n[... skipped %,d bytes of output ...]\n",
+                      skipped + headTrim + tailTrim));
+          while (marker.hasRemaining()) {
+            target.write(marker);
+          }
+          position += tailTrim;
+          count -= tailTrim;
+        }
+
+        while (count > 0) {
+          long transferred = channel.transferTo(position, count, target);
+          position += transferred;
+          count -= transferred;
+        }
+      }
+    }
+
+    /** The number of trailing bytes (before {@code end}) of an incomplete UTF-8 character. */
+    private static int incompleteCharBytes(FileChannel channel, long end) throws IOException {
+      byte[] bytes = read(channel, end - 3, 3);
+      for (int k = 1; k <= bytes.length; k++) {
+        int b = bytes[bytes.length - k] & 0xff;
+        if ((b & 0xC0) != 0x80) {
+          int charLength = b < 0x80 ? 1 : (b & 0xE0) == 0xC0 ? 2 : (b & 0xF0) == 0xE0 ? 3 : 4;
+          return charLength > k ? k : 0;
+        }
+      }
+      return 0;
+    }
+
+    /** The number of leading UTF-8 continuation bytes (at most 3) at {@code start}. */
+    private static int continuationBytes(FileChannel channel, long start, long count)
+        throws IOException {
+      byte[] bytes = read(channel, start, (int) Math.min(3, count));
+      int k = 0;
+      while (k < bytes.length && (bytes[k] & 0xC0) == 0x80) {
+        k++;
+      }
+      return k;
+    }
+
+    private static byte[] read(FileChannel channel, long position, int count) throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate(count);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, position + buffer.position()) < 0) {
+          break;
+        }
+      }
+      return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /** Return the segment's blocks to the arena. */
+    @Override
+    public void close() {
+      if (blockCount > 0) {
+        releaseBlocks(blocks, blockCount);
+        blockCount = 0;
+        lastBlockFill = BLOCK_SIZE;
+        length = 0;
+        skipped = 0;
+      }
+    }
+  }
+}
@@ -1,24 +1,34 @@
 package com.carrotsearch.gradle.buildinfra.testing;
 
 import java.io.IOException;
-import java.io.Reader;
+import java.io.OutputStreamWriter;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.util.function.Supplier;
 
+/**
+ * Buffers small output in memory and spills anything larger to a segment of the task's shared
+ * {@link SpillArena}. In-memory buffers of all writers are limited by a shared {@link
+ * OutputMemoryBudget}; a writer spills early if the budget is exhausted.
+ */
 class SpillWriter extends Writer {
-  private static final int MAX_BUFFERED = 2 * 1024;
-  private final StringWriter buffer = new StringWriter(MAX_BUFFERED);
+  private static final int MAX_BUFFERED = 64 * 1024;
+  private static final int RESERVATION_CHUNK = 4 * 1024;
 
-  private final Supplier<Path> spillPathSupplier;
+  private final StringWriter buffer = new StringWriter();
+
+  private final SpillArena arena;
+  private final OutputMemoryBudget budget;
+  private long reserved;
+
+  private SpillArena.Segment segment;
   private Writer spill;
-  private Path spillPath;
 
-  public SpillWriter(Supplier<Path> spillPathSupplier) {
-    this.spillPathSupplier = spillPathSupplier;
+  public SpillWriter(SpillArena arena, OutputMemoryBudget budget) {
+    this.arena = arena;
+    this.budget = budget;
   }
 
   @Override
@@ -66,52 +76,73 @@ class SpillWriter extends Writer {
 
   private Writer getSink(int expectedWriteChars) throws IOException {
     if (spill == null) {
-      if (buffer.getBuffer().length() + expectedWriteChars <= MAX_BUFFERED) {
+      int buffered = buffer.getBuffer().length() + expectedWriteChars;
+      if (buffered <= MAX_BUFFERED && reserve(buffered * 2L)) {
         return buffer;
       }
 
-      spillPath = spillPathSupplier.get();
-      spill = Files.newBufferedWriter(spillPath, StandardCharsets.UTF_8);
+      segment = arena.newSegment();
+      spill = new OutputStreamWriter(segment, StandardCharsets.UTF_8);
       spill.append(buffer.getBuffer());
       buffer.getBuffer().setLength(0);
+      buffer.getBuffer().trimToSize();
+      releaseReserved();
     }
 
     return spill;
   }
 
+  private boolean reserve(long bytes) {
+    if (bytes > reserved) {
+      long chunk = Math.max(bytes - reserved, RESERVATION_CHUNK);
+      if (!budget.tryReserve(chunk)) {
+        return false;
+      }
+      reserved += chunk;
+    }
+    return true;
+  }
+
+  private void releaseReserved() {
+    budget.release(reserved);
+    reserved = 0;
+  }
+
   @Override
   public void flush() throws IOException {
-    getSink(0).flush();
+    if (spill != null) {
+      spill.flush();
+    }
   }
 
   @Override
   public void close() throws IOException {
     buffer.close();
+    releaseReserved();
     if (spill != null) {
+      // Closing the writer releases the segment's blocks back to the arena.
       spill.close();
-      Files.delete(spillPath);
     }
   }
 
-  public void copyTo(Writer writer) throws IOException {
+  /** Copy the content to the target channel. Spilled content is transferred directly. */
+  public void copyTo(WritableByteChannel target) throws IOException {
     if (spill != null) {
       flush();
-      try (Reader reader = Files.newBufferedReader(spillPath, StandardCharsets.UTF_8)) {
-        char[] buffer = new char[1024 * 32];
-        int len;
-        while ((len = reader.read(buffer)) > 0) {
-          writer.write(buffer, 0, len);
-        }
-      }
+      segment.transferTo(target);
     } else {
-      writer.append(buffer.getBuffer());
+      var bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(buffer.getBuffer()));
+      while (bytes.hasRemaining()) {
+        target.write(bytes);
+      }
     }
   }
 
+  /** The total number of bytes (or chars, if not spilled yet) written so far. */
   public long length() throws IOException {
     flush();
     if (spill != null) {
-      return Files.size(spillPath);
+      return segment.length();
     } else {
       return buffer.getBuffer().length();
     }
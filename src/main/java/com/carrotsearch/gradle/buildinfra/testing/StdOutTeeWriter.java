@@ -2,77 +2,140 @@ package com.carrotsearch.gradle.buildinfra.testing;
 
 import de.thetaphi.forbiddenapis.SuppressForbidden;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Passes everything to the delegate and echoes it to the console. Console output is buffered and
+ * emitted in labeled blocks of complete lines, atomically with respect to other instances, so that
+ * suites running in parallel (in the same or different tasks) do not mangle each other's output.
+ */
 @SuppressForbidden()
 class StdOutTeeWriter extends Writer {
+  private static final int BLOCK_SIZE = 16 * 1024;
+  static final long MAX_BLOCK_DELAY = TimeUnit.SECONDS.toNanos(1);
+
   private final Writer delegate;
+  private final String label;
   private final PrintStream out = System.out;
+  private final Writer console;
+
+  private char[] block = new char[1024];
+  private int blockLength;
+  private long blockStart;
 
-  public StdOutTeeWriter(Writer delegate) {
+  public StdOutTeeWriter(Writer delegate, String label) {
     this.delegate = delegate;
+    this.label = label;
+    this.console = new OutputStreamWriter(out, out.charset());
   }
 
   @Override
   public void write(int c) throws IOException {
     delegate.write(c);
-    out.write(c);
-  }
-
-  @Override
-  public void write(char[] cbuf) throws IOException {
-    delegate.write(cbuf);
-    out.print(cbuf);
+    buffer((char) c);
   }
 
   @Override
-  public void write(String str) throws IOException {
-    delegate.write(str);
-    out.print(str);
+  public void write(char[] cbuf, int off, int len) throws IOException {
+    delegate.write(cbuf, off, len);
+    ensureCapacity(len);
+    System.arraycopy(cbuf, off, block, blockLength, len);
+    blockLength += len;
+    maybeEmit();
   }
 
   @Override
   public void write(String str, int off, int len) throws IOException {
     delegate.write(str, off, len);
-    out.append(str, off, len);
+    ensureCapacity(len);
+    str.getChars(off, off + len, block, blockLength);
+    blockLength += len;
+    maybeEmit();
   }
 
   @Override
-  public Writer append(CharSequence csq) throws IOException {
-    delegate.append(csq);
-    out.append(csq);
+  public Writer append(char c) throws IOException {
+    write(c);
     return this;
   }
 
-  @Override
-  public Writer append(CharSequence csq, int start, int end) throws IOException {
-    delegate.append(csq, start, end);
-    out.append(csq, start, end);
-    return this;
+  private void buffer(char c) throws IOException {
+    ensureCapacity(1);
+    block[blockLength++] = c;
+    maybeEmit();
   }
 
-  @Override
-  public Writer append(char c) throws IOException {
-    delegate.append(c);
-    out.append(c);
-    return this;
+  private void ensureCapacity(int len) {
+    if (blockLength == 0) {
+      blockStart = System.nanoTime();
+    }
+    if (blockLength + len > block.length) {
+      block = Arrays.copyOf(block, Math.max(block.length * 2, blockLength + len));
+    }
   }
 
-  @Override
-  public void write(char[] cbuf, int off, int len) throws IOException {
-    delegate.write(cbuf, off, len);
-    out.print(new String(cbuf, off, len));
+  private void maybeEmit() throws IOException {
+    if (blockLength >= BLOCK_SIZE || System.nanoTime() - blockStart >= MAX_BLOCK_DELAY) {
+      emitCompleteLines();
+    }
+  }
+
+  /**
+   * Emit complete lines buffered for longer than {@link #MAX_BLOCK_DELAY}. This is called
+   * periodically (under the same lock as writes) so that a suite that stops writing doesn't hold
+   * back its last lines until the next write.
+   */
+  public void emitPending() throws IOException {
+    if (blockLength > 0 && System.nanoTime() - blockStart >= MAX_BLOCK_DELAY) {
+      emitCompleteLines();
+    }
+  }
+
+  private void emitCompleteLines() throws IOException {
+    int end = blockLength;
+    while (end > 0 && block[end - 1] != '\n') {
+      end--;
+    }
+    if (end > 0) {
+      emit(end);
+    }
+  }
+
+  /** Emit the first {@code len} chars of the block to the console, atomically. */
+  private void emit(int len) throws IOException {
+    synchronized (out) {
+      console.write('[');
+      console.write(label);
+      console.write("]\n");
+      console.write(block, 0, len);
+      if (block[len - 1] != '\n') {
+        console.write('\n');
+      }
+      console.flush();
+    }
+
+    System.arraycopy(block, len, block, 0, blockLength - len);
+    blockLength -= len;
+    blockStart = System.nanoTime();
+    if (block.length > BLOCK_SIZE * 2 && blockLength < BLOCK_SIZE) {
+      block = Arrays.copyOf(block, BLOCK_SIZE);
+    }
   }
 
   @Override
   public void flush() throws IOException {
     delegate.flush();
-    out.flush();
   }
 
   @Override
   public void close() throws IOException {
+    if (blockLength > 0) {
+      emit(blockLength);
+    }
     delegate.close();
     // Don't close the actual output.
   }
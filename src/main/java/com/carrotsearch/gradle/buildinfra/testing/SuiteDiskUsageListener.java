@@ -0,0 +1,223 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.tasks.testing.TestDescriptor;
+import org.gradle.api.tasks.testing.TestListener;
+import org.gradle.api.tasks.testing.TestResult;
+
+/**
+ * Measures how much disk space each suite uses in its fork's working and temporary directories (a
+ * fork runs suites one at a time, so the growth of its directories during a suite belongs to that
+ * suite). The directories are measured on a background thread: when a suite starts, periodically
+ * while it runs (so that data written and deleted again is accounted for) and when it ends. The
+ * peak growth and the data left behind are written to a JSON file and suites whose peak is over a
+ * threshold are logged.
+ */
+class SuiteDiskUsageListener implements TestListener {
+  private static final Logger LOGGER = Logging.getLogger(SuiteDiskUsageListener.class);
+  private static final ObjectMapper MAPPER =
+      new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+  private static final long SAMPLE_INTERVAL_MILLIS = 1000;
+
+  /** Disk usage of a suite: the peak growth of its fork's directories and the growth at its end. */
+  public record Usage(long peak, long leftBehind) {}
+
+  /** A running suite, only accessed from the sampler thread. */
+  private static final class RunningSuite {
+    final String className;
+    final Path cwd;
+    final Path tmp;
+    final long sizeBefore;
+    long peak;
+
+    RunningSuite(String className, Path cwd, Path tmp) {
+      this.className = className;
+      this.cwd = cwd;
+      this.tmp = tmp;
+      this.sizeBefore = size();
+    }
+
+    long size() {
+      return ForkDirectories.diskUsage(cwd) + ForkDirectories.diskUsage(tmp);
+    }
+
+    long sample() {
+      long growth = Math.max(0, size() - sizeBefore);
+      peak = Math.max(peak, growth);
+      return growth;
+    }
+  }
+
+  private final String taskPath;
+  private final Path cwdBase;
+  private final Path tmpBase;
+  private final Path reportFile;
+  private final long warnThreshold;
+
+  /** Runs all measurements, in submission order. */
+  private transient ScheduledExecutorService sampler;
+
+  /** Running suites by executor, only accessed from the sampler thread. */
+  private transient Map<String, RunningSuite> running;
+
+  /** Only accessed from the sampler thread. */
+  private transient Map<String, Usage> usage;
+
+  public SuiteDiskUsageListener(
+      String taskPath, Path cwdBase, Path tmpBase, Path reportFile, long warnThreshold) {
+    this.taskPath = taskPath;
+    this.cwdBase = cwdBase;
+    this.tmpBase = tmpBase;
+    this.reportFile = reportFile;
+    this.warnThreshold = warnThreshold;
+  }
+
+  @Override
+  public synchronized void beforeSuite(TestDescriptor suite) {
+    if (suite.getParent() == null) {
+      running = new HashMap<>();
+      usage = new HashMap<>();
+      sampler =
+          Executors.newSingleThreadScheduledExecutor(
+              r -> {
+                Thread t = new Thread(r, "test-disk-usage");
+                t.setDaemon(true);
+                return t;
+              });
+      sampler.scheduleWithFixedDelay(
+          this::sampleRunning,
+          SAMPLE_INTERVAL_MILLIS,
+          SAMPLE_INTERVAL_MILLIS,
+          TimeUnit.MILLISECONDS);
+    } else if (sampler != null && suite.getClassName() != null) {
+      String executor = suite.getParent().getName();
+      String className = suite.getClassName();
+      var cwd = ForkDirectories.forkDir(cwdBase, executor);
+      var tmp = ForkDirectories.forkDir(tmpBase, executor);
+      if (cwd.isPresent() && tmp.isPresent()) {
+        submit(() -> running.put(executor, new RunningSuite(className, cwd.get(), tmp.get())));
+      }
+    }
+  }
+
+  @Override
+  public synchronized void afterSuite(TestDescriptor suite, TestResult result) {
+    if (sampler == null) {
+      return;
+    }
+
+    if (suite.getParent() == null) {
+      var measurements = sampler;
+      sampler = null;
+      measurements.shutdown();
+      try {
+        if (measurements.awaitTermination(1, TimeUnit.MINUTES)) {
+          report();
+        } else {
+          LOGGER.warn("{}: disk usage measurements did not complete in time.", taskPath);
+          measurements.shutdownNow();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        measurements.shutdownNow();
+      }
+    } else if (suite.getClassName() != null) {
+      String executor = suite.getParent().getName();
+      String className = suite.getClassName();
+      submit(
+          () -> {
+            RunningSuite rs = running.get(executor);
+            if (rs != null && rs.className.equals(className)) {
+              running.remove(executor);
+              long leftBehind = rs.sample();
+              if (rs.peak > 0) {
+                usage.merge(
+                    className, new Usage(rs.peak, leftBehind), SuiteDiskUsageListener::merge);
+              }
+            }
+          });
+    }
+  }
+
+  /** Merge usage of the same suite executed more than once (in different forks). */
+  private static Usage merge(Usage a, Usage b) {
+    return new Usage(Math.max(a.peak(), b.peak()), a.leftBehind() + b.leftBehind());
+  }
+
+  private void submit(Runnable measurement) {
+    try {
+      sampler.execute(measurement);
+    } catch (RejectedExecutionException e) {
+      // Shutting down.
+    }
+  }
+
+  private void sampleRunning() {
+    for (RunningSuite rs : running.values()) {
+      rs.sample();
+    }
+  }
+
+  private void report() {
+    if (usage.isEmpty()) {
+      return;
+    }
+
+    var sorted = new LinkedHashMap<String, Usage>();
+    usage.entrySet().stream()
+        .sorted(
+            Map.Entry.<String, Usage>comparingByValue(Comparator.comparingLong(Usage::peak))
+                .reversed())
+        .forEach(e -> sorted.put(e.getKey(), e.getValue()));
+
+    try {
+      Files.createDirectories(reportFile.getParent());
+      MAPPER.writeValue(reportFile.toFile(), sorted);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    var large =
+        sorted.entrySet().stream()
+            .filter(e -> warnThreshold > 0 && e.getValue().peak() >= warnThreshold)
+            .toList();
+    if (!large.isEmpty()) {
+      var sb = new StringBuilder();
+      for (var e : large) {
+        sb.append("\n  ")
+            .append(GcLogStats.formatMb(e.getValue().peak()))
+            .append(" (")
+            .append(GcLogStats.formatMb(e.getValue().leftBehind()))
+            .append(" left behind)  ")
+            .append(e.getKey());
+      }
+      LOGGER.warn(
+          "{}: suites that used {} or more in their working or temporary directory (see {}):{}",
+          taskPath,
+          GcLogStats.formatMb(warnThreshold),
+          reportFile,
+          sb);
+    }
+  }
+
+  @Override
+  public void beforeTest(TestDescriptor testDescriptor) {}
+
+  @Override
+  public void afterTest(TestDescriptor testDescriptor, TestResult result) {}
+}
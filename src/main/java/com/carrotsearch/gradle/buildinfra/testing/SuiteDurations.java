@@ -0,0 +1,126 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * A persistent store of per-suite execution times (in millis) of a single test task, collected
+ * from previous runs.
+ */
+class SuiteDurations {
+  private static final ObjectMapper MAPPER =
+      new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+  private final Path file;
+  private final TreeMap<String, Long> durations;
+
+  private SuiteDurations(Path file, TreeMap<String, Long> durations) {
+    this.file = file;
+    this.durations = durations;
+  }
+
+  /** Load the durations from a given file. A missing or corrupted file yields an empty store. */
+  public static SuiteDurations load(Path file) {
+    TreeMap<String, Long> durations = new TreeMap<>();
+    if (Files.isRegularFile(file)) {
+      try {
+        durations.putAll(
+            MAPPER.readValue(file.toFile(), new TypeReference<Map<String, Long>>() {}));
+      } catch (IOException e) {
+        // Ignore, the history is only a hint.
+      }
+    }
+    return new SuiteDurations(file, durations);
+  }
+
+  public synchronized void record(String suiteName, long millis) {
+    durations.put(suiteName, Math.max(0, millis));
+  }
+
+  public synchronized Map<String, Long> asMap() {
+    return Collections.unmodifiableMap(new TreeMap<>(durations));
+  }
+
+  public synchronized boolean isEmpty() {
+    return durations.isEmpty();
+  }
+
+  /** Drop suites that don't match the predicate (for example, deleted classes). */
+  public synchronized boolean retainIf(Predicate<String> keep) {
+    return durations.keySet().removeIf(keep.negate());
+  }
+
+  public synchronized void save() {
+    try {
+      Files.createDirectories(file.getParent());
+      Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+      MAPPER.writeValue(tmp.toFile(), durations);
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** A group of suites, for example the suites of a shard. */
+  public record Group(List<String> suites, long cost) {}
+
+  /**
+   * Split suites into at most {@code groups} cost-balanced groups using the longest processing time
+   * first heuristic: suites are sorted by decreasing cost and each is assigned to the currently
+   * least loaded group.
+   */
+  public static List<Group> balance(Map<String, Long> costs, int groups) {
+    var byCost = new ArrayList<>(costs.entrySet());
+    byCost.sort(
+        Map.Entry.<String, Long>comparingByValue()
+            .reversed()
+            .thenComparing(Map.Entry.comparingByKey()));
+
+    record Bin(int index, List<String> suites, long cost) {}
+    PriorityQueue<Bin> bins =
+        new PriorityQueue<>(Comparator.comparingLong(Bin::cost).thenComparingInt(Bin::index));
+    for (int i = 0; i < Math.max(1, groups); i++) {
+      bins.add(new Bin(i, new ArrayList<>(), 0));
+    }
+
+    for (var e : byCost) {
+      Bin bin = bins.remove();
+      bin.suites().add(e.getKey());
+      bins.add(new Bin(bin.index(), bin.suites(), bin.cost() + e.getValue()));
+    }
+
+    return bins.stream()
+        .sorted(Comparator.comparingInt(Bin::index))
+        .filter(bin -> !bin.suites().isEmpty())
+        .map(bin -> new Group(List.copyOf(bin.suites()), bin.cost()))
+        .toList();
+  }
+
+  /**
+   * The number of forks (at most {@code forks}) that are expected to finish the suites as soon as
+   * {@code forks} would. The wall time can't be shorter than the longest suite or than the total
+   * time divided by the number of forks, so forks past {@code total / longest} don't help.
+   */
+  public static int usefulForks(Map<String, Long> costs, int forks) {
+    long longest = costs.values().stream().mapToLong(Long::longValue).max().orElse(0);
+    long total = costs.values().stream().mapToLong(Long::longValue).sum();
+    if (longest <= 0 || forks <= 1) {
+      return Math.max(1, forks);
+    }
+    return (int) Math.max(1, Math.min(forks, (total + longest - 1) / longest));
+  }
+}
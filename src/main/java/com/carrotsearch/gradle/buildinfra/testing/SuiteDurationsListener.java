@@ -0,0 +1,47 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import java.nio.file.Path;
+import org.gradle.api.tasks.testing.TestDescriptor;
+import org.gradle.api.tasks.testing.TestListener;
+import org.gradle.api.tasks.testing.TestResult;
+
+/** Records the execution time of each test suite and persists it once the task completes. */
+class SuiteDurationsListener implements TestListener {
+  private final Path historyFile;
+  private transient SuiteDurations durations;
+
+  public SuiteDurationsListener(Path historyFile) {
+    this.historyFile = historyFile;
+  }
+
+  @Override
+  public synchronized void beforeSuite(TestDescriptor suite) {
+    if (suite.getParent() == null) {
+      durations = SuiteDurations.load(historyFile);
+    }
+  }
+
+  @Override
+  public void afterSuite(TestDescriptor suite, TestResult result) {
+    SuiteDurations durations;
+    synchronized (this) {
+      durations = this.durations;
+    }
+    if (durations == null) {
+      return;
+    }
+
+    if (suite.getParent() == null) {
+      durations.save();
+    } else if (suite.getClassName() != null
+        && result.getResultType() != TestResult.ResultType.SKIPPED) {
+      durations.record(suite.getClassName(), result.getEndTime() - result.getStartTime());
+    }
+  }
+
+  @Override
+  public void beforeTest(TestDescriptor testDescriptor) {}
+
+  @Override
+  public void afterTest(TestDescriptor testDescriptor, TestResult result) {}
+}
@@ -0,0 +1,276 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.testing.TestDescriptor;
+import org.gradle.api.tasks.testing.TestListener;
+import org.gradle.api.tasks.testing.TestResult;
+import org.gradle.jvm.toolchain.JavaLauncher;
+import org.gradle.process.CommandLineArgumentProvider;
+
+/**
+ * Trains and reuses an application class-data sharing (AppCDS) archive for test forks.
+ *
+ * <p>The JVM can't dump an archive with non-empty directories on the class path, so the archive
+ * covers Gradle's worker jar and the leading jars of the test runtime classpath (the class path
+ * itself is not reordered). Archives are stored under a fingerprint of the java launcher and the
+ * jars (paths, sizes and timestamps):
+ *
+ * <ul>
+ *   <li>if the archive exists, forks use it,
+ *   <li>otherwise forks log the classes they load (this is the training run) and the archive is
+ *       dumped from that class list once the tests complete, whether they passed or not.
+ * </ul>
+ *
+ * <p>Forks' arguments are decided when they're started, so CDS doesn't change the task's inputs.
+ */
+class TestCdsArchive implements CommandLineArgumentProvider, TestListener {
+  private static final Logger LOGGER = Logging.getLogger(TestCdsArchive.class);
+
+  private static final String ARCHIVE = "tests.jsa";
+  private static final String CLASS_LIST = "classes.lst";
+  private static final String DUMP_LOG = "dump.log";
+  private static final String DUMP_FAILED = "dump.failed";
+  private static final String TRAINING_DIR = "training";
+
+  private final Path archivesDir;
+  private final File workerJar;
+  private final String taskPath;
+  private final Provider<JavaLauncher> launcher;
+  private final FileCollection classpath;
+
+  /** The archive directory being trained in the current run, if any. */
+  private transient volatile Path trainingArchiveDir;
+
+  public TestCdsArchive(
+      Path archivesDir,
+      File workerJar,
+      String taskPath,
+      Provider<JavaLauncher> launcher,
+      FileCollection classpath) {
+    this.archivesDir = archivesDir;
+    this.workerJar = workerJar;
+    this.taskPath = taskPath;
+    this.launcher = launcher;
+    this.classpath = classpath;
+  }
+
+  @Override
+  public Iterable<String> asArguments() {
+    int javaVersion = launcher.get().getMetadata().getLanguageVersion().asInt();
+    if (javaVersion < 17 || !workerJar.isFile()) {
+      LOGGER.info(
+          "{}: not using a CDS archive (Java {}, worker jar {}).",
+          taskPath,
+          javaVersion,
+          workerJar.isFile() ? "present" : "missing");
+      return List.of();
+    }
+
+    Path dir =
+        archivesDir.resolve(
+            fingerprint(
+                launcher.get().getExecutablePath().getAsFile(), javaVersion, archivedClassPath()));
+    if (Files.exists(dir.resolve(DUMP_FAILED))) {
+      LOGGER.info("{}: not using a CDS archive, see {}.", taskPath, dir.resolve(DUMP_LOG));
+      return List.of();
+    }
+
+    Path archive = dir.resolve(ARCHIVE);
+    if (Files.exists(archive)) {
+      LOGGER.info("{}: using CDS archive {}.", taskPath, archive);
+      return List.of("-XX:SharedArchiveFile=" + archive, "-Xshare:auto");
+    }
+
+    LOGGER.info("{}: training CDS archive {}.", taskPath, archive);
+    Path trainingDir = dir.resolve(TRAINING_DIR);
+    try {
+      Files.createDirectories(trainingDir);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    trainingArchiveDir = dir;
+    return List.of(
+        "-Xlog:class+load=info:file=" + trainingDir.resolve("classload-%p.log") + ":none");
+  }
+
+  @Override
+  public void beforeSuite(TestDescriptor suite) {}
+
+  /** Dump the archive once all forks are done (also if tests failed). */
+  @Override
+  public void afterSuite(TestDescriptor suite, TestResult result) {
+    Path archiveDir = trainingArchiveDir;
+    if (suite.getParent() == null && archiveDir != null) {
+      trainingArchiveDir = null;
+      dump(archiveDir);
+    }
+  }
+
+  @Override
+  public void beforeTest(TestDescriptor testDescriptor) {}
+
+  @Override
+  public void afterTest(TestDescriptor testDescriptor, TestResult result) {}
+
+  private void dump(Path archiveDir) {
+    if (Files.exists(archiveDir.resolve(ARCHIVE))) {
+      return;
+    }
+
+    Path trainingDir = archiveDir.resolve(TRAINING_DIR);
+    try {
+      List<File> archivedPath = archivedClassPath();
+      Set<String> classes = loadedClasses(trainingDir, archivedPath);
+      if (classes.isEmpty()) {
+        return;
+      }
+
+      Path classList = archiveDir.resolve(CLASS_LIST);
+      Files.write(classList, classes, StandardCharsets.UTF_8);
+      Path tmpArchive = Files.createTempFile(archiveDir, ARCHIVE, ".tmp");
+      Path dumpLog = archiveDir.resolve(DUMP_LOG);
+
+      var command = new ArrayList<String>();
+      command.add(launcher.get().getExecutablePath().getAsFile().getAbsolutePath());
+      command.add("-Xshare:dump");
+      command.add("-XX:SharedClassListFile=" + classList);
+      command.add("-XX:SharedArchiveFile=" + tmpArchive);
+      command.add("-cp");
+      command.add(
+          archivedPath.stream()
+              .map(File::getAbsolutePath)
+              .collect(Collectors.joining(File.pathSeparator)));
+
+      int exitCode =
+          new ProcessBuilder(command)
+              .redirectErrorStream(true)
+              .redirectOutput(dumpLog.toFile())
+              .start()
+              .waitFor();
+      if (exitCode == 0 && Files.size(tmpArchive) > 0) {
+        Files.move(tmpArchive, archiveDir.resolve(ARCHIVE), StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.info("{}: created CDS archive in {}.", taskPath, archiveDir);
+      } else {
+        Files.deleteIfExists(tmpArchive);
+        Files.createFile(archiveDir.resolve(DUMP_FAILED));
+        LOGGER.warn(
+            "{}: could not create a CDS archive (exit code {}), see {}.",
+            taskPath,
+            exitCode,
+            dumpLog);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } finally {
+      deleteTrainingLogs(trainingDir);
+    }
+  }
+
+  /** The fork's class path covered by the archive: the worker jar and all leading jars. */
+  private List<File> archivedClassPath() {
+    var path = new ArrayList<File>();
+    path.add(workerJar);
+    for (File f : classpath) {
+      if (!f.isFile()) {
+        break;
+      }
+      path.add(f);
+    }
+    return path;
+  }
+
+  private static String fingerprint(File java, int javaVersion, List<File> classPath) {
+    try {
+      var digest = MessageDigest.getInstance("SHA-256");
+      var key = new StringBuilder();
+      key.append(java.getAbsolutePath()).append('\n').append(javaVersion).append('\n');
+      for (File f : classPath) {
+        key.append(f.getAbsolutePath())
+            .append(';')
+            .append(f.length())
+            .append(';')
+            .append(f.lastModified())
+            .append('\n');
+      }
+      byte[] hash = digest.digest(key.toString().getBytes(StandardCharsets.UTF_8));
+      return HexFormat.of().formatHex(hash, 0, 12);
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Classes loaded by the training forks from the JDK or from the archived class path, in the
+   * class list format ({@code java/lang/Object}).
+   */
+  private static Set<String> loadedClasses(Path trainingDir, List<File> archivedPath)
+      throws IOException {
+    Set<String> sources = new TreeSet<>();
+    for (File f : archivedPath) {
+      sources.add("source: " + f.toURI());
+      sources.add("source: file:" + f.getAbsolutePath());
+    }
+
+    Set<String> classes = new TreeSet<>();
+    if (!Files.isDirectory(trainingDir)) {
+      return classes;
+    }
+    try (Stream<Path> logs = Files.list(trainingDir)) {
+      for (Path log : logs.toList()) {
+        for (String line : Files.readAllLines(log, StandardCharsets.UTF_8)) {
+          int space = line.indexOf(' ');
+          if (space <= 0) {
+            continue;
+          }
+          String className = line.substring(0, space);
+          String source = line.substring(space + 1);
+          if (className.contains("$$Lambda") || className.contains("/0x")) {
+            continue;
+          }
+          if (source.startsWith("source: jrt:/")
+              || source.startsWith("source: shared objects file")
+              || sources.contains(source)) {
+            classes.add(className.replace('.', '/'));
+          }
+        }
+      }
+    }
+    return classes;
+  }
+
+  private static void deleteTrainingLogs(Path trainingDir) {
+    if (!Files.isDirectory(trainingDir)) {
+      return;
+    }
+    try (Stream<Path> logs = Files.list(trainingDir)) {
+      for (Path log : logs.toList()) {
+        Files.deleteIfExists(log);
+      }
+      Files.deleteIfExists(trainingDir);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,132 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.gradle.api.provider.Property;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+import org.gradle.tooling.events.FinishEvent;
+import org.gradle.tooling.events.OperationCompletionListener;
+import org.gradle.tooling.events.task.TaskFinishEvent;
+
+/**
+ * A build-wide budget of concurrently running test JVMs, counted in CPUs and memory, shared by all
+ * test tasks (of all projects) in the build.
+ *
+ * <p>The budget is handed out per task, not per fork: a test task acquires all its forks before it
+ * starts and holds them until it finishes, whatever its outcome. It gets as many forks as fit in
+ * what's left of the budget (up to its {@code maxParallelForks}), or waits until at least one fits.
+ * A task that starts first may therefore take the whole budget and delay the others. A task always
+ * gets at least one fork when no other task holds any, so a single fork bigger than the budget
+ * doesn't block the build.
+ */
+public abstract class TestForkBudgetService
+    implements BuildService<TestForkBudgetService.Parameters>, OperationCompletionListener {
+  public static final String NAME = "buildInfra-testForkBudget";
+
+  public interface Parameters extends BuildServiceParameters {
+    /** The number of CPUs all test JVMs (and their test threads) may use at once. */
+    Property<Integer> getCpus();
+
+    /** The memory (in bytes) all test JVMs may use at once, zero for no limit. */
+    Property<Long> getMemory();
+  }
+
+  /** The forks of a task and their resources. */
+  private record Grant(int forks, int cpus, long memory) {}
+
+  /** Peak usage of the budget and the time tasks spent waiting for forks. */
+  public record Usage(
+      int cpuBudget,
+      long memoryBudget,
+      int peakForks,
+      int peakCpus,
+      long peakMemory,
+      int throttledTasks,
+      long waitMillis) {}
+
+  private final Map<String, Grant> grants = new HashMap<>();
+  private int forks;
+  private int cpus;
+  private long memory;
+  private int peakForks;
+  private int peakCpus;
+  private long peakMemory;
+  private int throttledTasks;
+  private long waitNanos;
+
+  public TestForkBudgetService() {}
+
+  /**
+   * Acquire forks for a task, waiting until at least one fits in the budget.
+   *
+   * @return The number of forks granted, between 1 and {@code maxForks}.
+   */
+  public synchronized int acquire(String taskPath, int maxForks, int cpusPerFork, long memPerFork)
+      throws InterruptedException {
+    release(taskPath);
+
+    int cpuBudget = getParameters().getCpus().get();
+    long memoryBudget = getParameters().getMemory().get();
+    cpusPerFork = Math.max(1, cpusPerFork);
+    memPerFork = Math.max(1, memPerFork);
+
+    long start = System.nanoTime();
+    boolean waited = false;
+    while (true) {
+      long fit = Math.min(maxForks, (cpuBudget - cpus) / cpusPerFork);
+      if (memoryBudget > 0) {
+        fit = Math.min(fit, (memoryBudget - memory) / memPerFork);
+      }
+      if (fit >= 1 || grants.isEmpty()) {
+        int granted = (int) Math.max(1, fit);
+        var grant = new Grant(granted, granted * cpusPerFork, granted * memPerFork);
+        grants.put(taskPath, grant);
+        forks += grant.forks();
+        cpus += grant.cpus();
+        memory += grant.memory();
+        peakForks = Math.max(peakForks, forks);
+        peakCpus = Math.max(peakCpus, cpus);
+        peakMemory = Math.max(peakMemory, memory);
+        if (waited || granted < maxForks) {
+          throttledTasks++;
+          waitNanos += System.nanoTime() - start;
+        }
+        return granted;
+      }
+      wait();
+      waited = true;
+    }
+  }
+
+  /** Return the forks of a task to the budget. */
+  public synchronized void release(String taskPath) {
+    var grant = grants.remove(taskPath);
+    if (grant != null) {
+      forks -= grant.forks();
+      cpus -= grant.cpus();
+      memory -= grant.memory();
+      notifyAll();
+    }
+  }
+
+  public synchronized Usage getUsage() {
+    return new Usage(
+        getParameters().getCpus().get(),
+        getParameters().getMemory().get(),
+        peakForks,
+        peakCpus,
+        peakMemory,
+        throttledTasks,
+        TimeUnit.NANOSECONDS.toMillis(waitNanos));
+  }
+
+  /** Release forks of test tasks once they finish (even if they fail). */
+  @Override
+  public void onFinish(FinishEvent event) {
+    if (event instanceof TaskFinishEvent taskEvent) {
+      release(taskEvent.getDescriptor().getTaskPath());
+    }
+  }
+}
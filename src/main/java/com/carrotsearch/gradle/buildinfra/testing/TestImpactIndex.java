@@ -0,0 +1,248 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * A persistent index of the classes each test suite reaches, for running only suites affected by
+ * changes (test-impact analysis).
+ *
+ * <p>Every suite is stored with a fingerprint of all classes it transitively references (read from
+ * the constant pool of class files in the class path directories), plus the jars and resources on
+ * the class path. A suite is affected if its current fingerprint differs from the one stored when
+ * it last passed. Classes in the test directories that turned out not to be suites (helpers,
+ * abstract bases, nested classes) are stored too, so that they are not affected until they change.
+ * Classes reached only through reflection (for example, service loaders or class names in strings)
+ * are not tracked.
+ */
+class TestImpactIndex {
+  private static final ObjectMapper MAPPER =
+      new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+  /** Type references in descriptors and signatures: {@code Lcom/foo/Bar;}. */
+  private static final Pattern TYPE_REFERENCE = Pattern.compile("L([^;<>\\[.]+)[;<]");
+
+  /**
+   * The persisted index: the number of runs since the last full run, fingerprints of suites and of
+   * other classes in the test directories.
+   */
+  public record State(
+      int runsSinceFullRun, TreeMap<String, String> suites, TreeMap<String, String> nonSuites) {}
+
+  private final Path file;
+  private int runsSinceFullRun;
+  private final TreeMap<String, String> suites;
+  private final TreeMap<String, String> nonSuites;
+
+  private TestImpactIndex(Path file, State state) {
+    this.file = file;
+    this.runsSinceFullRun = state.runsSinceFullRun();
+    this.suites = state.suites() == null ? new TreeMap<>() : state.suites();
+    this.nonSuites = state.nonSuites() == null ? new TreeMap<>() : state.nonSuites();
+  }
+
+  /** Load the index from a given file. A missing or corrupted file yields an empty index. */
+  public static TestImpactIndex load(Path file) {
+    if (Files.isRegularFile(file)) {
+      try {
+        return new TestImpactIndex(file, MAPPER.readValue(file.toFile(), State.class));
+      } catch (IOException e) {
+        // Ignore, everything is affected then.
+      }
+    }
+    return new TestImpactIndex(file, new State(0, new TreeMap<>(), new TreeMap<>()));
+  }
+
+  public synchronized boolean isAffected(String className, String fingerprint) {
+    return !fingerprint.equals(suites.get(className))
+        && !fingerprint.equals(nonSuites.get(className));
+  }
+
+  /** Whether the class did not run as a suite the last time it was included in a run. */
+  public synchronized boolean isNonSuite(String className) {
+    return nonSuites.containsKey(className);
+  }
+
+  public synchronized void passed(String suite, String fingerprint) {
+    suites.put(suite, fingerprint);
+    nonSuites.remove(suite);
+  }
+
+  public synchronized void failed(String suite) {
+    suites.remove(suite);
+    nonSuites.remove(suite);
+  }
+
+  /** A class included in a successful run didn't run as a suite. */
+  public synchronized void notASuite(String className, String fingerprint) {
+    suites.remove(className);
+    nonSuites.put(className, fingerprint);
+  }
+
+  /** Forget classes that no longer exist. */
+  public synchronized void retain(Set<String> existing) {
+    suites.keySet().retainAll(existing);
+    nonSuites.keySet().retainAll(existing);
+  }
+
+  public synchronized int runsSinceFullRun() {
+    return runsSinceFullRun;
+  }
+
+  public synchronized void setRunsSinceFullRun(int runs) {
+    this.runsSinceFullRun = runs;
+  }
+
+  public synchronized void save() {
+    try {
+      Files.createDirectories(file.getParent());
+      Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+      MAPPER.writeValue(tmp.toFile(), new State(runsSinceFullRun, suites, nonSuites));
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Compute the fingerprints of all classes in the test classes directories (candidate suites),
+   * given the task's class path.
+   */
+  public static Map<String, String> fingerprints(Iterable<File> classpath, Set<File> testDirs)
+      throws IOException {
+    Map<String, String> classHashes = new HashMap<>();
+    Map<String, Set<String>> references = new HashMap<>();
+    Set<String> candidates = new TreeSet<>();
+    var external = new TreeMap<String, String>();
+
+    for (File entry : classpath) {
+      if (entry.isFile()) {
+        external.put(entry.getAbsolutePath(), entry.length() + ";" + entry.lastModified());
+      } else if (entry.isDirectory()) {
+        Path root = entry.toPath();
+        try (Stream<Path> files = Files.walk(root)) {
+          for (Path file : files.filter(Files::isRegularFile).toList()) {
+            String relative = root.relativize(file).toString().replace(File.separatorChar, '/');
+            byte[] bytes = Files.readAllBytes(file);
+            if (!relative.endsWith(".class")) {
+              external.put(relative, hash(bytes));
+              continue;
+            }
+
+            String className = relative.substring(0, relative.length() - ".class".length());
+            if (classHashes.putIfAbsent(className, hash(bytes)) != null) {
+              // Shadowed by an earlier class path entry.
+              continue;
+            }
+            references.put(className, referencedClasses(bytes));
+            if (testDirs.contains(entry)) {
+              candidates.add(className);
+            }
+          }
+        }
+      }
+    }
+
+    String externalHash = hash(external.toString().getBytes(StandardCharsets.UTF_8));
+    var fingerprints = new TreeMap<String, String>();
+    for (String suite : candidates) {
+      var reached = new TreeSet<String>();
+      var queue = new ArrayDeque<String>();
+      queue.add(suite);
+      reached.add(suite);
+      while (!queue.isEmpty()) {
+        for (String ref : references.getOrDefault(queue.poll(), Set.of())) {
+          if (classHashes.containsKey(ref) && reached.add(ref)) {
+            queue.add(ref);
+          }
+        }
+      }
+
+      var key = new StringBuilder(externalHash);
+      for (String c : reached) {
+        key.append('\n').append(c).append(':').append(classHashes.get(c));
+      }
+      fingerprints.put(
+          suite.replace('/', '.'), hash(key.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+    return fingerprints;
+  }
+
+  /** Internal names of all classes referenced from the constant pool of a class file. */
+  static Set<String> referencedClasses(byte[] classFile) throws IOException {
+    var refs = new HashSet<String>();
+    var in = new DataInputStream(new ByteArrayInputStream(classFile));
+    if (in.readInt() != 0xCAFEBABE) {
+      return refs;
+    }
+    in.readUnsignedShort(); // minor version
+    in.readUnsignedShort(); // major version
+
+    int count = in.readUnsignedShort();
+    String[] utf8 = new String[count];
+    int[] classNameIndexes = new int[count];
+    int classes = 0;
+    for (int i = 1; i < count; i++) {
+      int tag = in.readUnsignedByte();
+      switch (tag) {
+        case 1 -> utf8[i] = in.readUTF();
+        case 7 -> classNameIndexes[classes++] = in.readUnsignedShort();
+        case 8, 16, 19, 20 -> in.skipBytes(2);
+        case 15 -> in.skipBytes(3);
+        case 3, 4, 9, 10, 11, 12, 17, 18 -> in.skipBytes(4);
+        case 5, 6 -> {
+          in.skipBytes(8);
+          i++; // takes two slots
+        }
+        default -> throw new IOException("Unknown constant pool tag: " + tag);
+      }
+    }
+
+    for (int c = 0; c < classes; c++) {
+      String name = utf8[classNameIndexes[c]];
+      if (name != null && !name.startsWith("[")) {
+        refs.add(name);
+      }
+    }
+    for (String s : utf8) {
+      if (s != null && s.indexOf(';') >= 0) {
+        Matcher m = TYPE_REFERENCE.matcher(s);
+        while (m.find()) {
+          refs.add(m.group(1));
+        }
+      }
+    }
+    return refs;
+  }
+
+  private static String hash(byte[] bytes) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+      return HexFormat.of().formatHex(digest, 0, 16);
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
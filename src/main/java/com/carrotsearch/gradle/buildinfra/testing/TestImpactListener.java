@@ -0,0 +1,88 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.gradle.api.tasks.testing.TestDescriptor;
+import org.gradle.api.tasks.testing.TestListener;
+import org.gradle.api.tasks.testing.TestResult;
+
+/**
+ * Records the fingerprints of suites that passed (and forgets suites that failed) in the {@link
+ * TestImpactIndex}, once the task completes. Classes included in a successful run that didn't run
+ * as suites are recorded as non-suites.
+ */
+class TestImpactListener implements TestListener {
+  private final Path indexFile;
+  private volatile Map<String, String> fingerprints;
+  private volatile Set<String> included;
+  private volatile int runsSinceFullRun;
+  private transient TestImpactIndex index;
+  private transient Set<String> executed;
+
+  public TestImpactListener(Path indexFile) {
+    this.indexFile = indexFile;
+  }
+
+  /**
+   * Set the fingerprints of all candidate classes, the classes included in this run and the run
+   * counter to store.
+   */
+  public void setRun(Map<String, String> fingerprints, Set<String> included, int runsSinceFullRun) {
+    this.fingerprints = fingerprints;
+    this.included = included;
+    this.runsSinceFullRun = runsSinceFullRun;
+  }
+
+  @Override
+  public synchronized void beforeSuite(TestDescriptor suite) {
+    if (suite.getParent() == null && fingerprints != null) {
+      index = TestImpactIndex.load(indexFile);
+      index.setRunsSinceFullRun(runsSinceFullRun);
+      index.retain(fingerprints.keySet());
+      executed = ConcurrentHashMap.newKeySet();
+    }
+  }
+
+  @Override
+  public void afterSuite(TestDescriptor suite, TestResult result) {
+    TestImpactIndex index;
+    synchronized (this) {
+      index = this.index;
+    }
+    if (index == null) {
+      return;
+    }
+
+    if (suite.getParent() == null) {
+      if (result.getResultType() == TestResult.ResultType.SUCCESS) {
+        for (String className : included) {
+          String fingerprint = fingerprints.get(className);
+          if (fingerprint != null && !executed.contains(className)) {
+            index.notASuite(className, fingerprint);
+          }
+        }
+      }
+      index.save();
+    } else if (suite.getClassName() != null) {
+      executed.add(suite.getClassName());
+      String fingerprint = fingerprints.get(suite.getClassName());
+      switch (result.getResultType()) {
+        case SUCCESS -> {
+          if (fingerprint != null) {
+            index.passed(suite.getClassName(), fingerprint);
+          }
+        }
+        case FAILURE -> index.failed(suite.getClassName());
+        case SKIPPED -> {}
+      }
+    }
+  }
+
+  @Override
+  public void beforeTest(TestDescriptor testDescriptor) {}
+
+  @Override
+  public void afterTest(TestDescriptor testDescriptor, TestResult result) {}
+}
@@ -0,0 +1,327 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import javax.inject.Inject;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileSystemOperations;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.tasks.options.Option;
+import org.gradle.api.tasks.testing.TestOutputEvent;
+
+/**
+ * Renders JUnit XML and HTML reports from {@link TestResults} files, into {@code
+ * <destination>/<task>/xml} and {@code <destination>/<task>/html}.
+ */
+public abstract class TestReportsTask extends DefaultTask {
+  static final String XML = "xml";
+  static final String HTML = "html";
+
+  /** The results files, one per test task. Files that don't exist are skipped. */
+  @InputFiles
+  @PathSensitive(PathSensitivity.NAME_ONLY)
+  public abstract ConfigurableFileCollection getResults();
+
+  @Input
+  public abstract ListProperty<String> getFormats();
+
+  @Option(option = "format", description = "Report format to render (xml or html), repeatable.")
+  public void setFormat(List<String> formats) {
+    getFormats().set(formats);
+  }
+
+  @OutputDirectory
+  public abstract DirectoryProperty getDestination();
+
+  @Inject
+  protected abstract FileSystemOperations getFileSystemOperations();
+
+  @TaskAction
+  public void render() throws IOException {
+    for (String format : getFormats().get()) {
+      if (!format.equals(XML) && !format.equals(HTML)) {
+        throw new GradleException(
+            "Unknown test report format (should be " + XML + " or " + HTML + "): " + format);
+      }
+    }
+
+    Path destination = getDestination().get().getAsFile().toPath();
+    getFileSystemOperations().delete(spec -> spec.delete(destination.toFile()));
+
+    for (File resultsFile : getResults()) {
+      if (!resultsFile.isFile()) {
+        continue;
+      }
+      String fileName = resultsFile.getName();
+      String taskName =
+          fileName.substring(0, fileName.length() - TestResults.FILE_SUFFIX.length());
+      var suites = TestResults.readBySuite(resultsFile.toPath());
+      if (getFormats().get().contains(XML)) {
+        Path dir = destination.resolve(taskName).resolve(XML);
+        Files.createDirectories(dir);
+        for (var e : suites.entrySet()) {
+          writeJunitXml(dir.resolve("TEST-" + e.getKey() + ".xml"), e.getKey(), e.getValue());
+        }
+      }
+      if (getFormats().get().contains(HTML)) {
+        Path dir = destination.resolve(taskName).resolve(HTML);
+        Files.createDirectories(dir);
+        writeHtml(dir.resolve("index.html"), taskName, suites);
+      }
+      getLogger()
+          .lifecycle(
+              "Rendered {} reports of {} to {}",
+              getFormats().get(),
+              taskName,
+              destination.resolve(taskName));
+    }
+  }
+
+  private static void writeJunitXml(Path file, String suiteName, List<TestResults.Entry> entries)
+      throws IOException {
+    var tests = entries.stream().filter(TestResults.Entry::forTest).toList();
+    var suite = entries.stream().filter(TestResults.Entry::forSuite).findFirst();
+    // Suite-level failures (for example in static initializers or class rules) are reported as an
+    // error of a synthetic test, like Gradle does.
+    var suiteFailure = suite.filter(e -> e.failure() != null);
+    long start =
+        suite.map(TestResults.Entry::start).orElse(tests.isEmpty() ? 0 : tests.getFirst().start());
+    double seconds =
+        suite
+            .map(TestResults.Entry::seconds)
+            .orElse(tests.stream().mapToDouble(TestResults.Entry::seconds).sum());
+
+    try (OutputStream os = Files.newOutputStream(file)) {
+      XMLStreamWriter xml =
+          XMLOutputFactory.newFactory().createXMLStreamWriter(os, StandardCharsets.UTF_8.name());
+      xml.writeStartDocument(StandardCharsets.UTF_8.name(), "1.0");
+      xml.writeCharacters("\n");
+      xml.writeStartElement("testsuite");
+      writeAttribute(xml, "name", suiteName);
+      int errors = suiteFailure.isPresent() ? 1 : 0;
+      xml.writeAttribute("tests", Integer.toString(tests.size() + errors));
+      xml.writeAttribute("skipped", Long.toString(count(tests, "SKIPPED")));
+      xml.writeAttribute("failures", Long.toString(count(tests, "FAILURE")));
+      xml.writeAttribute("errors", Integer.toString(errors));
+      xml.writeAttribute(
+          "timestamp",
+          DateTimeFormatter.ISO_LOCAL_DATE_TIME.format(
+              Instant.ofEpochMilli(start)
+                  .truncatedTo(ChronoUnit.SECONDS)
+                  .atOffset(ZoneOffset.UTC)));
+      xml.writeAttribute("time", seconds(seconds));
+      xml.writeCharacters("\n");
+
+      for (var test : tests) {
+        xml.writeCharacters("  ");
+        xml.writeStartElement("testcase");
+        writeAttribute(xml, "name", test.test());
+        writeAttribute(xml, "classname", suiteName);
+        xml.writeAttribute("time", seconds(test.seconds()));
+        switch (test.result()) {
+          case "SKIPPED" -> xml.writeEmptyElement("skipped");
+          case "FAILURE" -> writeFailure(xml, "failure", test);
+          default -> {}
+        }
+        xml.writeEndElement();
+        xml.writeCharacters("\n");
+      }
+
+      if (suiteFailure.isPresent()) {
+        xml.writeCharacters("  ");
+        xml.writeStartElement("testcase");
+        xml.writeAttribute("name", "classMethod");
+        writeAttribute(xml, "classname", suiteName);
+        xml.writeAttribute("time", seconds(suiteFailure.get().seconds()));
+        writeFailure(xml, "error", suiteFailure.get());
+        xml.writeEndElement();
+        xml.writeCharacters("\n");
+      }
+
+      writeOutput(xml, "system-out", entries, TestOutputEvent.Destination.StdOut);
+      writeOutput(xml, "system-err", entries, TestOutputEvent.Destination.StdErr);
+
+      xml.writeEndElement();
+      xml.writeEndDocument();
+      xml.close();
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static void writeFailure(XMLStreamWriter xml, String element, TestResults.Entry entry)
+      throws XMLStreamException {
+    xml.writeStartElement(element);
+    if (entry.failureMessage() != null) {
+      writeAttribute(xml, "message", entry.failureMessage());
+    }
+    if (entry.failureType() != null) {
+      writeAttribute(xml, "type", entry.failureType());
+    }
+    if (entry.failure() != null) {
+      xml.writeCharacters(xmlChars(entry.failure()));
+    }
+    xml.writeEndElement();
+  }
+
+  private static void writeOutput(
+      XMLStreamWriter xml,
+      String element,
+      List<TestResults.Entry> entries,
+      TestOutputEvent.Destination destination)
+      throws XMLStreamException {
+    xml.writeCharacters("  ");
+    xml.writeStartElement(element);
+    for (var e : entries) {
+      if (e.forOutput() && destination.name().equals(e.destination())) {
+        xml.writeCharacters(xmlChars(e.output()));
+      }
+    }
+    xml.writeEndElement();
+    xml.writeCharacters("\n");
+  }
+
+  private static void writeAttribute(XMLStreamWriter xml, String name, String value)
+      throws XMLStreamException {
+    xml.writeAttribute(name, xmlChars(value));
+  }
+
+  /**
+   * Replace characters not allowed in XML 1.0 documents (control characters such as ANSI escapes,
+   * unpaired surrogates) with a question mark.
+   */
+  private static String xmlChars(String s) {
+    StringBuilder sb = null;
+    for (int i = 0; i < s.length(); ) {
+      int cp = s.codePointAt(i);
+      int next = i + Character.charCount(cp);
+      boolean valid =
+          cp == '\t'
+              || cp == '\n'
+              || cp == '\r'
+              || (cp >= 0x20 && cp <= 0xD7FF)
+              || (cp >= 0xE000 && cp <= 0xFFFD)
+              || cp >= 0x10000;
+      if (!valid && sb == null) {
+        sb = new StringBuilder(s.length()).append(s, 0, i);
+      }
+      if (sb != null) {
+        if (valid) {
+          sb.append(s, i, next);
+        } else {
+          sb.append('?');
+        }
+      }
+      i = next;
+    }
+    return sb == null ? s : sb.toString();
+  }
+
+  private static void writeHtml(
+      Path file, String taskName, Map<String, List<TestResults.Entry>> suites) throws IOException {
+    try (Writer w = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+      long total = 0;
+      long failed = 0;
+      long skipped = 0;
+      for (var entries : suites.values()) {
+        for (var e : entries) {
+          if (e.forTest()) {
+            total++;
+            failed += e.result().equals("FAILURE") ? 1 : 0;
+            skipped += e.result().equals("SKIPPED") ? 1 : 0;
+          }
+        }
+      }
+
+      w.write("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>");
+      w.write(escape(taskName));
+      w.write("</title><style>");
+      w.write("body{font-family:sans-serif} td,th{padding:2px 8px;text-align:left}");
+      w.write(" .FAILURE{color:#b00} .SKIPPED{color:#888} pre{background:#f4f4f4;padding:8px}");
+      w.write("</style></head><body>\n");
+      w.write(
+          String.format(
+              Locale.ROOT,
+              "<h1>%s</h1>\n<p>%d suites, %d tests, %d failed, %d skipped.</p>\n",
+              escape(taskName),
+              suites.size(),
+              total,
+              failed,
+              skipped));
+
+      w.write("<table>\n<tr><th>Suite</th><th>Tests</th><th>Failed</th><th>Skipped</th>");
+      w.write("<th>Time</th><th>Result</th></tr>\n");
+      for (var e : suites.entrySet()) {
+        var tests = e.getValue().stream().filter(TestResults.Entry::forTest).toList();
+        var suite = e.getValue().stream().filter(TestResults.Entry::forSuite).findFirst();
+        String result = suite.map(TestResults.Entry::result).orElse("");
+        w.write(
+            String.format(
+                Locale.ROOT,
+                "<tr class=\"%s\"><td>%s</td><td>%d</td><td>%d</td><td>%d</td><td>%ss</td>"
+                    + "<td>%s</td></tr>\n",
+                result,
+                escape(e.getKey()),
+                tests.size(),
+                count(tests, "FAILURE"),
+                count(tests, "SKIPPED"),
+                seconds(suite.map(TestResults.Entry::seconds).orElse(0d)),
+                result));
+      }
+      w.write("</table>\n");
+
+      var failures =
+          suites.values().stream().flatMap(List::stream).filter(e -> e.failure() != null).toList();
+      if (!failures.isEmpty()) {
+        w.write("<h2>Failures</h2>\n");
+        for (var e : failures) {
+          w.write("<h3 class=\"FAILURE\">");
+          w.write(escape(e.forSuite() ? e.suite() : e.suite() + "." + e.test()));
+          w.write("</h3>\n<pre>");
+          w.write(escape(e.failure()));
+          w.write("</pre>\n");
+        }
+      }
+      w.write("</body></html>\n");
+    }
+  }
+
+  private static long count(List<TestResults.Entry> tests, String resultType) {
+    return tests.stream().filter(e -> e.result().equals(resultType)).count();
+  }
+
+  private static String seconds(double seconds) {
+    return String.format(Locale.ROOT, "%.3f", seconds);
+  }
+
+  private static String escape(String s) {
+    return s.replace("&", "&amp;")
+        .replace("<", "&lt;")
+        .replace(">", "&gt;")
+        .replace("\"", "&quot;");
+  }
+}
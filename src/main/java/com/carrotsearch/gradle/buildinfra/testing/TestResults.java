@@ -0,0 +1,131 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.gradle.api.tasks.testing.TestDescriptor;
+import org.gradle.api.tasks.testing.TestOutputEvent;
+import org.gradle.api.tasks.testing.TestResult;
+
+/**
+ * A compact store of test results: a single, append-only file per test task with one JSON object
+ * per line for every test, every suite and every chunk of a suite's output (NDJSON). Reports are
+ * rendered from it on demand (see {@link TestReportsTask}).
+ */
+class TestResults {
+  static final String FILE_SUFFIX = ".ndjson";
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  /** The name of the results file of a test task. */
+  static String fileName(String taskName) {
+    return taskName + FILE_SUFFIX;
+  }
+
+  /**
+   * The result of a single test or, if {@code test} is null, of a whole suite. Times are epoch
+   * millis, the failure fields describe the first exception. Entries with {@code output} carry a
+   * chunk of the suite's standard output or error (see {@code destination}) instead of a result.
+   */
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public record Entry(
+      String suite,
+      String test,
+      String result,
+      long start,
+      long end,
+      String failureType,
+      String failureMessage,
+      String failure,
+      String destination,
+      String output) {
+    public boolean forSuite() {
+      return test == null && output == null;
+    }
+
+    public boolean forTest() {
+      return test != null;
+    }
+
+    public boolean forOutput() {
+      return output != null;
+    }
+
+    public double seconds() {
+      return (end - start) / 1000d;
+    }
+  }
+
+  static Entry entry(String suite, String test, TestResult result) {
+    String failureType = null;
+    String failureMessage = null;
+    String failure = null;
+    if (!result.getExceptions().isEmpty()) {
+      Throwable t = result.getExceptions().getFirst();
+      failureType = t.getClass().getName();
+      failureMessage = t.getMessage();
+      var sw = new StringWriter();
+      t.printStackTrace(new PrintWriter(sw));
+      failure = sw.toString();
+    }
+    return new Entry(
+        suite,
+        test,
+        result.getResultType().name(),
+        result.getStartTime(),
+        result.getEndTime(),
+        failureType,
+        failureMessage,
+        failure,
+        null,
+        null);
+  }
+
+  static Entry output(String suite, TestOutputEvent.Destination destination, String output) {
+    return new Entry(suite, null, null, 0, 0, null, null, null, destination.name(), output);
+  }
+
+  static Entry entry(TestDescriptor descriptor, TestResult result) {
+    return descriptor.isComposite()
+        ? entry(descriptor.getClassName(), null, result)
+        : entry(descriptor.getClassName(), descriptor.getName(), result);
+  }
+
+  static void write(Writer writer, Entry entry) throws IOException {
+    writer.write(MAPPER.writeValueAsString(entry));
+    writer.write('\n');
+  }
+
+  /** Read all entries, grouped by suite in the order suites first appear in the file. */
+  static Map<String, List<Entry>> readBySuite(Path file) throws IOException {
+    var suites = new LinkedHashMap<String, List<Entry>>();
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isBlank()) {
+          continue;
+        }
+        Entry entry;
+        try {
+          entry = MAPPER.readValue(line, Entry.class);
+        } catch (IOException e) {
+          // A truncated last line (the task was killed).
+          continue;
+        }
+        suites.computeIfAbsent(entry.suite(), k -> new ArrayList<>()).add(entry);
+      }
+    }
+    return suites;
+  }
+}
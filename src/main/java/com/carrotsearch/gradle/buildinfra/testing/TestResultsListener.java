@@ -0,0 +1,114 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.gradle.api.tasks.testing.TestDescriptor;
+import org.gradle.api.tasks.testing.TestListener;
+import org.gradle.api.tasks.testing.TestOutputEvent;
+import org.gradle.api.tasks.testing.TestOutputListener;
+import org.gradle.api.tasks.testing.TestResult;
+
+/**
+ * Appends the results and output of all tests and suites of a task to a {@link TestResults} file.
+ * Output events of the same suite and destination that arrive one after another are merged into a
+ * single entry.
+ */
+class TestResultsListener implements TestListener, TestOutputListener {
+  /** Flush merged output once it's this long. */
+  private static final int MAX_OUTPUT_CHUNK = 64 * 1024;
+
+  private final Path resultsFile;
+  private transient Writer writer;
+
+  private transient String pendingSuite;
+  private transient TestOutputEvent.Destination pendingDestination;
+  private transient StringBuilder pendingOutput;
+
+  public TestResultsListener(Path resultsFile) {
+    this.resultsFile = resultsFile;
+  }
+
+  @Override
+  public synchronized void beforeSuite(TestDescriptor suite) {
+    if (suite.getParent() == null) {
+      try {
+        Files.createDirectories(resultsFile.getParent());
+        writer = Files.newBufferedWriter(resultsFile, StandardCharsets.UTF_8);
+        pendingOutput = new StringBuilder();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  @Override
+  public synchronized void afterSuite(TestDescriptor suite, TestResult result) {
+    if (writer == null) {
+      return;
+    }
+
+    try {
+      flushOutput();
+      if (suite.getParent() == null) {
+        writer.close();
+        writer = null;
+      } else if (suite.getClassName() != null) {
+        TestResults.write(writer, TestResults.entry(suite, result));
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public void beforeTest(TestDescriptor testDescriptor) {}
+
+  @Override
+  public synchronized void afterTest(TestDescriptor testDescriptor, TestResult result) {
+    // Tests without a class (for example of some dynamic test engines) have no suite to go to.
+    if (writer == null || testDescriptor.getClassName() == null) {
+      return;
+    }
+
+    try {
+      TestResults.write(writer, TestResults.entry(testDescriptor, result));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public synchronized void onOutput(TestDescriptor descriptor, TestOutputEvent event) {
+    String suite = descriptor.getClassName();
+    if (writer == null || suite == null) {
+      return;
+    }
+
+    try {
+      if (!suite.equals(pendingSuite)
+          || event.getDestination() != pendingDestination
+          || pendingOutput.length() >= MAX_OUTPUT_CHUNK) {
+        flushOutput();
+        pendingSuite = suite;
+        pendingDestination = event.getDestination();
+      }
+      pendingOutput.append(event.getMessage());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void flushOutput() throws IOException {
+    if (!pendingOutput.isEmpty()) {
+      TestResults.write(
+          writer, TestResults.output(pendingSuite, pendingDestination, pendingOutput.toString()));
+      pendingOutput.setLength(0);
+    }
+    pendingSuite = null;
+    pendingDestination = null;
+  }
+}
@@ -0,0 +1,113 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.FileTreeElement;
+import org.gradle.api.specs.Spec;
+
+/**
+ * A stable slice of test suites (shard {@code index} of {@code count}, 1-based). Suites are
+ * assigned by a hash of their class name or, if suite costs are given, by a cost-balanced split of
+ * the known suites. Either way the assignment depends only on the inputs, so shards computed on
+ * different machines cover every suite exactly once.
+ */
+class TestShard {
+  private static final Pattern SHARD_SPEC = Pattern.compile("(\\d+)/(\\d+)");
+
+  private final int index;
+  private final int count;
+  private final String costsFile;
+
+  /** Lazily loaded at execution time, so that changes to the costs file are picked up. */
+  private transient Map<String, Integer> assigned;
+
+  private TestShard(int index, int count, String costsFile) {
+    this.index = index;
+    this.count = count;
+    this.costsFile = costsFile;
+  }
+
+  /**
+   * Parse a shard specification ({@code i/n}). If {@code costsFile} is not null, suites with known
+   * costs are balanced across shards and the remaining ones are hashed.
+   */
+  public static TestShard parse(String spec, Path costsFile) {
+    var m = SHARD_SPEC.matcher(spec.trim());
+    if (!m.matches()) {
+      throw new GradleException(
+          String.format(Locale.ROOT, "Invalid test shard '%s', expected 'index/count'.", spec));
+    }
+    int index = Integer.parseInt(m.group(1));
+    int count = Integer.parseInt(m.group(2));
+    if (count < 1 || index < 1 || index > count) {
+      throw new GradleException(
+          String.format(
+              Locale.ROOT, "Invalid test shard '%s', index must be in [1, %d].", spec, count));
+    }
+    return new TestShard(index, count, costsFile == null ? null : costsFile.toString());
+  }
+
+  private synchronized Map<String, Integer> assigned() {
+    if (assigned == null) {
+      assigned = new HashMap<>();
+      if (costsFile != null) {
+        Path file = Path.of(costsFile);
+        if (!Files.isRegularFile(file)) {
+          throw new GradleException("Test shard durations file does not exist: " + file);
+        }
+        var groups = SuiteDurations.balance(SuiteDurations.load(file).asMap(), count);
+        for (int i = 0; i < groups.size(); i++) {
+          for (String suite : groups.get(i).suites()) {
+            assigned.put(suite, i + 1);
+          }
+        }
+      }
+    }
+    return assigned;
+  }
+
+  /** The shard (1-based) a suite belongs to. */
+  public int shardOf(String className) {
+    Integer shard = assigned().get(className);
+    if (shard != null) {
+      return shard;
+    }
+    var crc = new CRC32();
+    crc.update(className.getBytes(StandardCharsets.UTF_8));
+    return (int) (crc.getValue() % count) + 1;
+  }
+
+  public boolean contains(String className) {
+    return shardOf(className) == index;
+  }
+
+  /**
+   * A spec matching class files (including nested classes) of suites that belong to other shards.
+   */
+  public Spec<FileTreeElement> otherShards() {
+    return element -> {
+      String path = element.getRelativePath().getPathString();
+      if (element.isDirectory() || !path.endsWith(".class")) {
+        return false;
+      }
+      String className = path.substring(0, path.length() - ".class".length());
+      int nested = className.indexOf('$');
+      if (nested >= 0) {
+        className = className.substring(0, nested);
+      }
+      return !contains(className.replace('/', '.'));
+    };
+  }
+
+  @Override
+  public String toString() {
+    return index + "/" + count;
+  }
+}
@@ -0,0 +1,135 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Collects wall times of suites and tests from all test tasks and reports the slowest ones. */
+class TestTimings {
+  /** A single timed entry. {@code test} is null for suites. */
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public record Entry(String project, String task, String suite, String test, long millis) {}
+
+  private static final Comparator<Entry> BY_TIME =
+      Comparator.comparingLong(Entry::millis)
+          .thenComparing(Entry::task)
+          .thenComparing(Entry::suite)
+          .thenComparing(e -> e.test() == null ? "" : e.test());
+
+  private final int topN;
+  private final PriorityQueue<Entry> slowestSuites = new PriorityQueue<>(BY_TIME);
+  private final PriorityQueue<Entry> slowestTests = new PriorityQueue<>(BY_TIME);
+  private final Map<String, ProjectTimes> projects = new ConcurrentHashMap<>();
+
+  public TestTimings(int topN) {
+    this.topN = topN;
+  }
+
+  /** Wall times of all suites and tests of a single project. */
+  private static class ProjectTimes {
+    private long[] suites = new long[16];
+    private int suiteCount;
+    private long[] tests = new long[256];
+    private int testCount;
+
+    synchronized void addSuite(long millis) {
+      if (suiteCount == suites.length) suites = Arrays.copyOf(suites, suiteCount * 2);
+      suites[suiteCount++] = millis;
+    }
+
+    synchronized void addTest(long millis) {
+      if (testCount == tests.length) tests = Arrays.copyOf(tests, testCount * 2);
+      tests[testCount++] = millis;
+    }
+
+    synchronized Map<String, Object> toMap() {
+      var map = new LinkedHashMap<String, Object>();
+      map.put("suites", suiteCount);
+      map.put("suiteTimeMillis", Arrays.stream(suites, 0, suiteCount).sum());
+      map.put("suitePercentiles", percentiles(suites, suiteCount));
+      map.put("tests", testCount);
+      map.put("testTimeMillis", Arrays.stream(tests, 0, testCount).sum());
+      map.put("testPercentiles", percentiles(tests, testCount));
+      return map;
+    }
+
+    private static Map<String, Long> percentiles(long[] values, int count) {
+      var map = new LinkedHashMap<String, Long>();
+      if (count > 0) {
+        long[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        for (int p : new int[] {50, 90, 95, 99}) {
+          map.put("p" + p, sorted[Math.min(count - 1, (int) Math.ceil(p / 100.0 * count) - 1)]);
+        }
+        map.put("max", sorted[count - 1]);
+      }
+      return map;
+    }
+  }
+
+  public void suite(String project, String task, String suite, long millis) {
+    projects.computeIfAbsent(project, k -> new ProjectTimes()).addSuite(millis);
+    offer(slowestSuites, new Entry(project, task, suite, null, millis));
+  }
+
+  public void test(String project, String task, String suite, String test, long millis) {
+    projects.computeIfAbsent(project, k -> new ProjectTimes()).addTest(millis);
+    offer(slowestTests, new Entry(project, task, suite, test, millis));
+  }
+
+  private void offer(PriorityQueue<Entry> queue, Entry entry) {
+    synchronized (queue) {
+      if (queue.size() < topN) {
+        queue.add(entry);
+      } else if (BY_TIME.compare(queue.peek(), entry) < 0) {
+        queue.poll();
+        queue.add(entry);
+      }
+    }
+  }
+
+  public List<Entry> slowestSuites() {
+    return sorted(slowestSuites);
+  }
+
+  public List<Entry> slowestTests() {
+    return sorted(slowestTests);
+  }
+
+  private static List<Entry> sorted(PriorityQueue<Entry> queue) {
+    List<Entry> entries;
+    synchronized (queue) {
+      entries = new ArrayList<>(queue);
+    }
+    entries.sort(BY_TIME.reversed());
+    return entries;
+  }
+
+  public boolean isEmpty() {
+    return projects.isEmpty();
+  }
+
+  public void writeReport(Path file) throws IOException {
+    var report = new LinkedHashMap<String, Object>();
+    report.put("slowestSuites", slowestSuites());
+    report.put("slowestTests", slowestTests());
+    var perProject = new TreeMap<String, Object>();
+    projects.forEach((project, times) -> perProject.put(project, times.toMap()));
+    report.put("projects", perProject);
+
+    Files.createDirectories(file.getParent());
+    new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(file.toFile(), report);
+  }
+}
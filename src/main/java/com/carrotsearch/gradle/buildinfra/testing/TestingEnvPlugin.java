@@ -2,73 +2,69 @@ package com.carrotsearch.gradle.buildinfra.testing;
 
 import com.carrotsearch.gradle.buildinfra.AbstractPlugin;
 import com.carrotsearch.gradle.buildinfra.buildoptions.BuildOption;
+import com.carrotsearch.gradle.buildinfra.buildoptions.BuildOptionValueSource;
 import com.carrotsearch.gradle.buildinfra.buildoptions.BuildOptionsExtension;
 import com.carrotsearch.gradle.buildinfra.buildoptions.BuildOptionsPlugin;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import java.io.File;
 import java.io.IOException;
-import java.io.Serializable;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
 import javax.inject.Inject;
 import org.apache.tools.ant.types.Commandline;
 import org.gradle.api.GradleException;
 import org.gradle.api.Project;
 import org.gradle.api.Task;
-import org.gradle.api.configuration.BuildFeatures;
 import org.gradle.api.file.DirectoryProperty;
-import org.gradle.api.file.FileSystemOperations;
 import org.gradle.api.internal.tasks.testing.logging.DefaultTestLogging;
+import org.gradle.api.logging.Logger;
 import org.gradle.api.plugins.JavaBasePlugin;
+import org.gradle.api.plugins.JavaPluginExtension;
 import org.gradle.api.problems.Problems;
 import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.PathSensitivity;
 import org.gradle.api.tasks.TaskCollection;
+import org.gradle.api.tasks.TaskProvider;
 import org.gradle.api.tasks.testing.Test;
-import org.gradle.api.tasks.testing.TestDescriptor;
-import org.gradle.api.tasks.testing.TestListener;
-import org.gradle.api.tasks.testing.TestResult;
+import org.gradle.api.tasks.testing.junit.JUnitOptions;
+import org.gradle.api.tasks.testing.junitplatform.JUnitPlatformOptions;
 import org.gradle.api.tasks.testing.logging.TestExceptionFormat;
 import org.gradle.api.tasks.testing.logging.TestLogEvent;
 import org.gradle.api.tasks.testing.logging.TestLoggingContainer;
-import org.gradle.internal.logging.text.StyledTextOutput;
-import org.gradle.internal.logging.text.StyledTextOutputFactory;
+import org.gradle.api.tasks.testing.testng.TestNGOptions;
+import org.gradle.build.event.BuildEventsListenerRegistry;
+import org.gradle.jvm.toolchain.JavaLauncher;
+import org.gradle.jvm.toolchain.JavaToolchainService;
 import org.gradle.process.CommandLineArgumentProvider;
+import org.gradle.util.GradleVersion;
 import org.jetbrains.annotations.NotNull;
 
 public abstract class TestingEnvPlugin extends AbstractPlugin {
   private static final String TEST_OUTPUTS_DIR = "test-outputs";
+  private static final String TEST_HISTORY_DIR = "test-history";
+  private static final String TEST_CDS_DIR = "test-cds";
+  private static final String TEST_RESULTS_DIR = "test-results";
+  private static final String TEST_REPORTS_DIR = "reports/test-results";
+  private static final String FORK_LAUNCHER_SCRIPT = "tmp/test-jvm/bin/java";
+  private static final String TEST_TIMINGS_REPORT = "test-timings.json";
+  private static final String FLAKY_SUITES_REPORT = "test-flaky-suites.json";
   private static final String PRINT_RANDOMIZATION_SEED_INFO_TASK_NAME = "randomizationInfo";
   private static final String ALL_TESTS_SUMMARY_TASK_NAME = "allTestsSummary";
-
-  class TestSummary implements Serializable {
-    long testTasksExecuted;
-    long tests;
-    long failures;
-    long ignored;
-
-    public synchronized void incrementTasks() {
-      testTasksExecuted++;
-    }
-
-    public synchronized void suiteResult(TestDescriptor desc, TestResult result) {
-      if (desc.isComposite()) return;
-      account(result);
-    }
-
-    public synchronized void testResult(TestDescriptor desc, TestResult result) {
-      if (desc.isComposite()) return;
-      account(result);
-    }
-
-    private void account(TestResult result) {
-      tests += result.getTestCount();
-      failures += result.getFailedTestCount();
-      ignored += result.getSkippedTestCount();
-    }
-  }
+  private static final String TEST_REPORTS_TASK_NAME = "testReports";
 
   abstract static class RootTestingProjectExtension {
     public static final String NAME = "buildInfra-testing-root";
@@ -77,27 +73,60 @@ public abstract class TestingEnvPlugin extends AbstractPlugin {
 
     abstract Property<String> getRootSeed();
 
-    abstract Property<TestSummary> getTestSummary();
+    /** Stop all tests after this many failed suites in the build, zero to run all. */
+    abstract Property<Integer> getFailFast();
+
+    // Task.usesService requires the exact providers returned from service registration, so these
+    // can't be managed properties.
+    private Provider<TestsSummaryService> testsSummaryService;
+    private Provider<TestsConsoleService> testsConsoleService;
+    private Provider<TestForkBudgetService> testForkBudgetService;
+
+    Provider<TestsSummaryService> getTestsSummaryService() {
+      return testsSummaryService;
+    }
+
+    Provider<TestsConsoleService> getTestsConsoleService() {
+      return testsConsoleService;
+    }
+
+    /** The build-wide test JVM budget or {@code null} if it's disabled. */
+    Provider<TestForkBudgetService> getTestForkBudgetService() {
+      return testForkBudgetService;
+    }
   }
 
   abstract static class TestingProjectExtension {
     public static final String NAME = "buildInfra-testing";
 
+    /** Names of test tasks this plugin registers to rerun tests of other tasks. */
+    private final Set<String> generatedTestTasks = new HashSet<>();
+
     public TestingProjectExtension() {}
 
     TaskCollection<Test> getTestTasks(Project project) {
       return project.getTasks().withType(Test.class);
     }
-  }
 
-  @Inject
-  protected abstract FileSystemOperations getFilesystemOps();
+    /**
+     * Mark a test task (by name) as one that reruns tests of another task. Such tasks keep no
+     * history or results of their own. Must be called before the task is registered: {@code
+     * configureEach} actions run before the task's own configuration.
+     */
+    void markGenerated(String taskName) {
+      generatedTestTasks.add(taskName);
+    }
+
+    boolean isGenerated(Test task) {
+      return generatedTestTasks.contains(task.getName());
+    }
+  }
 
   @Inject
-  protected abstract BuildFeatures getBuildFeatures();
+  protected abstract JavaToolchainService getJavaToolchains();
 
   @Inject
-  protected abstract StyledTextOutputFactory getStyledOutputFactory();
+  protected abstract BuildEventsListenerRegistry getBuildEventsListenerRegistry();
 
   @Inject
   public TestingEnvPlugin(Problems problems) {
@@ -113,8 +142,8 @@ public abstract class TestingEnvPlugin extends AbstractPlugin {
               .getExtensions()
               .create(RootTestingProjectExtension.NAME, RootTestingProjectExtension.class);
 
-      installVerboseCheckHook(project);
       installRootSeed(project, ext);
+      installSharedServices(project, ext);
       installGlobalTestsSummary(project, ext);
     } else {
       project.getRootProject().getPlugins().apply(TestingEnvPlugin.class);
@@ -132,39 +161,326 @@ public abstract class TestingEnvPlugin extends AbstractPlugin {
             });
   }
 
-  private void installGlobalTestsSummary(Project project, RootTestingProjectExtension ext) {
-    TestSummary testSummary = new TestSummary();
-    ext.getTestSummary().set(testSummary);
-    var configurationCache = getBuildFeatures().getConfigurationCache();
-    if (configurationCache.getRequested().getOrElse(false)) {
-      project.getLogger().warn("Global test summary does not work with the configuration cache.");
-    } else {
-      project
-          .getTasks()
-          .register(
-              ALL_TESTS_SUMMARY_TASK_NAME,
-              Task.class,
-              t -> {
-                t.doFirst(
-                    task -> {
-                      if (testSummary.testTasksExecuted > 0) {
-                        StringBuilder msg = new StringBuilder();
-                        msg.append(
-                            pluralize("test task", testSummary.testTasksExecuted)
-                                + " executed"
-                                + ", "
-                                + pluralize("test", testSummary.tests));
-                        if (testSummary.failures > 0) {
-                          msg.append(", " + pluralize("failure", testSummary.failures));
-                        }
-                        if (testSummary.ignored > 0) {
-                          msg.append(", " + testSummary.ignored + " ignored");
-                        }
-                        project.getLogger().lifecycle(msg.toString());
-                      }
-                    });
+  private void installSharedServices(Project project, RootTestingProjectExtension ext) {
+    var slowestOption =
+        project
+            .getExtensions()
+            .getByType(BuildOptionsExtension.class)
+            .addIntOption(
+                "tests.slowest",
+                "The number of slowest suites and tests to include in the test timings report.",
+                50);
+
+    var sharedServices = project.getGradle().getSharedServices();
+    ext.testsSummaryService =
+        sharedServices.registerIfAbsent(
+            TestsSummaryService.NAME,
+            TestsSummaryService.class,
+            spec -> spec.getParameters().getSlowestCount().set(slowestOption));
+    ext.testsConsoleService =
+        sharedServices.registerIfAbsent(
+            TestsConsoleService.NAME, TestsConsoleService.class, spec -> {});
+
+    var buildOptions = project.getExtensions().getByType(BuildOptionsExtension.class);
+    var forkBudgetOption =
+        buildOptions.addBooleanOption(
+            "tests.budget",
+            "Limit concurrently running test JVMs of all test tasks in the build.",
+            project.getGradle().getStartParameter().isParallelProjectExecutionEnabled());
+    var budgetCpusOption =
+        buildOptions.addIntOption(
+            "tests.budget.cpus",
+            "CPUs all concurrently running test JVMs may use (with tests.budget).",
+            Runtime.getRuntime().availableProcessors());
+    var budgetMemoryOption =
+        buildOptions.addIntOption(
+            "tests.budget.memory",
+            "Memory (in MB) all concurrently running test JVMs may use, 0 for no limit.",
+            project
+                .getProviders()
+                .provider(
+                    () -> (int) (DefaultTestJvms.availableMemory().orElse(0) / (1024 * 1024))));
+    if (forkBudgetOption.get()) {
+      ext.testForkBudgetService =
+          sharedServices.registerIfAbsent(
+              TestForkBudgetService.NAME,
+              TestForkBudgetService.class,
+              spec -> {
+                spec.getParameters().getCpus().set(budgetCpusOption);
+                spec.getParameters()
+                    .getMemory()
+                    .set(budgetMemoryOption.map(mb -> mb * 1024L * 1024L));
               });
+      getBuildEventsListenerRegistry().onTaskCompletion(ext.testForkBudgetService);
+    }
+  }
+
+  private static void installGlobalTestsSummary(Project project, RootTestingProjectExtension ext) {
+    Provider<TestsSummaryService> testSummary = ext.getTestsSummaryService();
+    Provider<TestForkBudgetService> forkBudget = ext.getTestForkBudgetService();
+    var gcMaxShareOption =
+        project
+            .getExtensions()
+            .getByType(BuildOptionsExtension.class)
+            .addIntOption(
+                "tests.gc.maxShare",
+                "Flag test JVMs that spent more than this percentage of their time in GC pauses.",
+                10);
+    int gcMaxShare = gcMaxShareOption.get();
+    var failFastOption =
+        project
+            .getExtensions()
+            .getByType(BuildOptionsExtension.class)
+            .addIntOption(
+                "tests.failfast",
+                "Stop all test tasks and their JVMs after this many failed suites in the build.");
+    ext.getFailFast().set(failFastOption.orElse(0));
+    int failFast = ext.getFailFast().get();
+    Path timingsReport =
+        project
+            .getLayout()
+            .getBuildDirectory()
+            .file(TEST_TIMINGS_REPORT)
+            .get()
+            .getAsFile()
+            .toPath();
+    Path flakyReport =
+        project
+            .getLayout()
+            .getBuildDirectory()
+            .file(FLAKY_SUITES_REPORT)
+            .get()
+            .getAsFile()
+            .toPath();
+    project
+        .getTasks()
+        .register(
+            ALL_TESTS_SUMMARY_TASK_NAME,
+            Task.class,
+            t -> {
+              t.usesService(testSummary);
+              if (forkBudget != null) {
+                t.usesService(forkBudget);
+              }
+              t.doFirst(
+                  task -> {
+                    var summary = testSummary.get();
+                    if (summary.getTestTasksExecuted() > 0) {
+                      StringBuilder msg = new StringBuilder();
+                      msg.append(
+                          pluralize("test task", summary.getTestTasksExecuted())
+                              + " executed"
+                              + ", "
+                              + pluralize("test", summary.getTests()));
+                      if (summary.getFailures() > 0) {
+                        msg.append(", " + pluralize("failure", summary.getFailures()));
+                      }
+                      if (summary.getIgnored() > 0) {
+                        msg.append(", " + summary.getIgnored() + " ignored");
+                      }
+                      var flakySuites = summary.getFlakySuites();
+                      if (!flakySuites.isEmpty()) {
+                        msg.append(", " + pluralize("flaky suite", flakySuites.size()));
+                      }
+                      task.getLogger().lifecycle(msg.toString());
+                      reportFlaky(task.getLogger(), flakySuites, flakyReport);
+                      reportFailFast(task.getLogger(), summary, failFast);
+                      reportGcStats(task.getLogger(), summary.getGcStats(), gcMaxShare);
+                      if (forkBudget != null) {
+                        reportForkBudget(task.getLogger(), forkBudget.get().getUsage());
+                      }
+                      reportNoisiest(task.getLogger(), summary.getNoisiestSuites());
+                      reportSlowest(task.getLogger(), summary.getTimings(), timingsReport);
+                    }
+                  });
+            });
+  }
+
+  private static void reportFlaky(
+      Logger logger, List<TestsSummaryService.FlakySuite> flakySuites, Path report) {
+    try {
+      if (flakySuites.isEmpty()) {
+        Files.deleteIfExists(report);
+        return;
+      }
+      Files.createDirectories(report.getParent());
+      new ObjectMapper()
+          .enable(SerializationFeature.INDENT_OUTPUT)
+          .writeValue(report.toFile(), flakySuites);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    StringBuilder msg = new StringBuilder();
+    msg.append("Flaky suites (failed, then passed on retry):\n");
+    for (var flaky : flakySuites) {
+      msg.append("  ").append(flaky.task()).append(" ").append(flaky.suite()).append("\n");
+      msg.append("    reproduce with: ").append(flaky.reproLine()).append("\n");
+    }
+    msg.append("Flaky suites report: ").append(report);
+    logger.lifecycle(msg.toString());
+  }
+
+  private static void reportFailFast(Logger logger, TestsSummaryService summary, int failFast) {
+    if (!summary.isFailFastStopped()) {
+      return;
+    }
+
+    StringBuilder msg = new StringBuilder();
+    msg.append(
+        String.format(
+            Locale.ROOT,
+            "Tests stopped after %s (tests.failfast=%d), remaining suites didn't run:%n",
+            pluralize("failed suite", summary.getFailFastSuites().size()),
+            failFast));
+    for (var failed : summary.getFailFastSuites()) {
+      msg.append("  ").append(failed.task()).append(" ").append(failed.suite()).append("\n");
+      msg.append("    reproduce with: ").append(failed.reproLine()).append("\n");
+    }
+    logger.lifecycle(msg.toString().stripTrailing());
+  }
+
+  private static String heapUsage(long peakUsed, long peakLive, long committed) {
+    return String.format(
+        Locale.ROOT,
+        "peak heap used %s (%s live after GC, %s committed)",
+        GcLogStats.formatMb(peakUsed),
+        GcLogStats.formatMb(peakLive),
+        GcLogStats.formatMb(committed));
+  }
+
+  private static void reportGcStats(
+      Logger logger, List<TestsSummaryService.TaskGcStats> gcStats, int maxSharePercent) {
+    if (gcStats.isEmpty()) {
+      return;
     }
+
+    StringBuilder msg = new StringBuilder("Heap and GC per test task:\n");
+    StringBuilder flagged = new StringBuilder();
+    for (var taskStats : gcStats) {
+      var forks = taskStats.forks();
+      long wallMillis = forks.stream().mapToLong(GcLogStats.Fork::wallMillis).sum();
+      double pauseMillis = forks.stream().mapToDouble(GcLogStats.Fork::pauseMillis).sum();
+      long peakUsed = forks.stream().mapToLong(GcLogStats.Fork::peakUsed).max().orElse(0);
+      long peakLive = forks.stream().mapToLong(GcLogStats.Fork::peakLive).max().orElse(0);
+      long committed = forks.stream().mapToLong(GcLogStats.Fork::committed).max().orElse(0);
+      msg.append(
+          String.format(
+              Locale.ROOT,
+              "  %s: %s, %s, %s, %.2fs in GC pauses (%.1f%% of JVM time)%n",
+              taskStats.task(),
+              pluralize("JVM", forks.size()),
+              heapUsage(peakUsed, peakLive, committed),
+              pluralize("GC pause", forks.stream().mapToInt(GcLogStats.Fork::pauses).sum()),
+              pauseMillis / 1000.0,
+              wallMillis == 0 ? 0 : 100.0 * pauseMillis / wallMillis));
+
+      for (var fork : forks) {
+        if (fork.gcShare() * 100 > maxSharePercent) {
+          flagged.append(
+              String.format(
+                  Locale.ROOT,
+                  "  %s: JVM (pid %s) spent %.1f%% of %.2fs in GC pauses, %s%n",
+                  taskStats.task(),
+                  fork.pid(),
+                  fork.gcShare() * 100,
+                  fork.wallMillis() / 1000.0,
+                  heapUsage(fork.peakUsed(), fork.peakLive(), fork.committed())));
+        }
+      }
+    }
+
+    if (!flagged.isEmpty()) {
+      msg.append(
+              String.format(
+                  Locale.ROOT,
+                  "Test JVMs over %d%% of time in GC (consider increasing tests.maxheap):%n",
+                  maxSharePercent))
+          .append(flagged);
+    }
+    logger.lifecycle(msg.toString().stripTrailing());
+  }
+
+  private static void reportForkBudget(Logger logger, TestForkBudgetService.Usage usage) {
+    var msg =
+        new StringBuilder(
+            String.format(
+                Locale.ROOT,
+                "Test JVM budget: peak %s using %d of %d CPUs",
+                pluralize("concurrent JVM", usage.peakForks()),
+                usage.peakCpus(),
+                usage.cpuBudget()));
+    if (usage.memoryBudget() > 0) {
+      msg.append(
+          String.format(
+              Locale.ROOT,
+              " and %s of %s",
+              GcLogStats.formatMb(usage.peakMemory()),
+              GcLogStats.formatMb(usage.memoryBudget())));
+    }
+    if (usage.throttledTasks() > 0) {
+      msg.append(
+          String.format(
+              Locale.ROOT,
+              ", %s throttled (%.1fs waiting)",
+              pluralize("test task", usage.throttledTasks()),
+              usage.waitMillis() / 1000.0));
+    }
+    logger.lifecycle(msg.toString());
+  }
+
+  private static void reportNoisiest(
+      Logger logger, List<TestsSummaryService.NoisySuite> noisiestSuites) {
+    if (noisiestSuites.isEmpty()) {
+      return;
+    }
+
+    StringBuilder msg = new StringBuilder("Noisiest suites (output):\n");
+    for (var suite : noisiestSuites) {
+      msg.append(
+          String.format(
+              Locale.ROOT,
+              "  %10s %10s/s %s %s%n",
+              formatSize(suite.bytes()),
+              formatSize(suite.bytesPerSecond()),
+              suite.task(),
+              suite.suite()));
+    }
+    logger.lifecycle(msg.toString().stripTrailing());
+  }
+
+  private static String formatSize(double bytes) {
+    return bytes < 1024 * 1024
+        ? String.format(Locale.ROOT, "%.1f KB", bytes / 1024)
+        : String.format(Locale.ROOT, "%.1f MB", bytes / (1024 * 1024));
+  }
+
+  private static void reportSlowest(Logger logger, TestTimings timings, Path report) {
+    if (timings.isEmpty()) {
+      return;
+    }
+
+    try {
+      timings.writeReport(report);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    StringBuilder msg = new StringBuilder();
+    msg.append("Slowest suites:\n");
+    timings.slowestSuites().stream()
+        .limit(10)
+        .forEach(e -> msg.append(formatTiming(e.millis(), e.task(), e.suite())));
+    msg.append("Slowest tests:\n");
+    timings.slowestTests().stream()
+        .limit(10)
+        .forEach(e -> msg.append(formatTiming(e.millis(), e.task(), e.suite() + "." + e.test())));
+    msg.append("Full timings report: ").append(report);
+    logger.lifecycle(msg.toString());
+  }
+
+  private static String formatTiming(long millis, String task, String name) {
+    return String.format(Locale.ROOT, "  %8.2fs %s %s%n", millis / 1000.0, task, name);
   }
 
   private static String pluralize(String word, long count) {
@@ -200,57 +516,6 @@ public abstract class TestingEnvPlugin extends AbstractPlugin {
             });
   }
 
-  private static void installVerboseCheckHook(Project project) {
-    if (project.getGradle().getStartParameter().getMaxWorkerCount() > 1) {
-      project
-          .getGradle()
-          .getTaskGraph()
-          .whenReady(
-              graph -> {
-                boolean verboseMode =
-                    project.getAllprojects().stream()
-                        .anyMatch(
-                            p -> {
-                              if (p.getPlugins().hasPlugin(BuildOptionsPlugin.class)) {
-                                var buildOptions =
-                                    p.getExtensions().getByType(BuildOptionsExtension.class);
-                                if (buildOptions.hasOption("tests.verbose")) {
-                                  return buildOptions
-                                      .getOption("tests.verbose")
-                                      .asBooleanProvider()
-                                      .get();
-                                }
-                              }
-                              return false;
-                            });
-                if (verboseMode) {
-                  var testTaskPaths =
-                      project.getAllprojects().stream()
-                          .flatMap(
-                              p -> {
-                                var ext =
-                                    p.getExtensions().findByType(TestingProjectExtension.class);
-                                if (ext == null) return java.util.stream.Stream.of();
-                                else return ext.getTestTasks(p).stream();
-                              })
-                          .map(org.gradle.api.DefaultTask::getPath)
-                          .collect(java.util.stream.Collectors.toSet());
-
-                  var testTasksCount =
-                      graph.getAllTasks().stream()
-                          .filter(t -> testTaskPaths.contains(t.getPath()))
-                          .count();
-
-                  if (testTasksCount > 1) {
-                    throw new GradleException(
-                        "Run only one test task in verbose mode or pass --max-workers=1 option "
-                            + "to gradle to prevent mangled console output.");
-                  }
-                }
-              });
-    }
-  }
-
   private void applyTestingEnv(Project project) {
     project.getPlugins().apply(BuildOptionsPlugin.class);
 
@@ -260,10 +525,20 @@ public abstract class TestingEnvPlugin extends AbstractPlugin {
         project.getExtensions().getByType(TestingProjectExtension.class).getTestTasks(project);
     configureReproduceLineExtension(testTasks);
     configureHtmlReportsOption(buildOptions, testTasks);
+    configureCompactResults(project, buildOptions, testTasks);
     configureTestTaskOptions(project, buildOptions, testTasks);
     configureRandomizedTestingOptions(
         project, buildOptions, testTasks, ":" + PRINT_RANDOMIZATION_SEED_INFO_TASK_NAME);
+    configureFailedSuites(project, buildOptions, testTasks);
+    configureTestImpact(project, buildOptions, testTasks);
+    configureBeastMode(project, buildOptions, testTasks);
+    configureRetries(project, buildOptions, testTasks);
+    configureSharding(project, buildOptions, testTasks);
+    configureCds(project, buildOptions, testTasks);
+    configureProfiling(project, buildOptions, testTasks);
+    configureGcStats(project, buildOptions, testTasks);
     configureGlobalTestSummary(project, testTasks);
+    configureFailFast(project, testTasks);
   }
 
   private void configureReproduceLineExtension(TaskCollection<Test> testTasks) {
@@ -274,44 +549,51 @@ public abstract class TestingEnvPlugin extends AbstractPlugin {
         });
   }
 
-  private void configureGlobalTestSummary(Project project, TaskCollection<Test> testTasks) {
-    var configurationCache = getBuildFeatures().getConfigurationCache();
-    if (configurationCache.getRequested().getOrElse(false)) {
-      // Just ignore, won't work.
-      return;
-    }
-
+  private static void configureGlobalTestSummary(Project project, TaskCollection<Test> testTasks) {
     var testSummary =
         project
             .getRootProject()
             .getExtensions()
-            .findByType(RootTestingProjectExtension.class)
-            .getTestSummary()
-            .get();
+            .getByType(RootTestingProjectExtension.class)
+            .getTestsSummaryService();
 
     testTasks.configureEach(
         task -> {
           task.finalizedBy(":" + ALL_TESTS_SUMMARY_TASK_NAME);
-
-          testSummary.incrementTasks();
+          task.usesService(testSummary);
           task.addTestListener(
-              new TestListener() {
-                @Override
-                public void beforeSuite(TestDescriptor suite) {}
-
-                @Override
-                public void afterSuite(TestDescriptor suite, TestResult result) {
-                  testSummary.suiteResult(suite, result);
-                }
+              new TestsSummaryService.Listener(testSummary, project.getPath(), task.getPath()));
+        });
+  }
 
-                @Override
-                public void beforeTest(TestDescriptor testDescriptor) {}
+  /**
+   * Stop all tests in the build once {@code tests.failfast} suites have failed: running forks (of
+   * all test tasks) are killed and test tasks that haven't started yet are skipped. Gradle's own
+   * fail-fast only stops the task with the first failed test.
+   */
+  private static void configureFailFast(Project project, TaskCollection<Test> testTasks) {
+    var ext = project.getRootProject().getExtensions().getByType(RootTestingProjectExtension.class);
+    int failFast = ext.getFailFast().get();
+    if (failFast <= 0) {
+      return;
+    }
 
-                @Override
-                public void afterTest(TestDescriptor testDescriptor, TestResult result) {
-                  testSummary.testResult(testDescriptor, result);
-                }
-              });
+    var testSummary = ext.getTestsSummaryService();
+    testTasks.configureEach(
+        task -> {
+          task.usesService(testSummary);
+          task.onlyIf(
+              "fewer than tests.failfast suites failed in the build",
+              t -> !testSummary.get().isFailFastStopped());
+          var listener =
+              new TestsSummaryService.FailFastListener(
+                  testSummary,
+                  task.getPath(),
+                  failFast,
+                  task.getExtensions().getByType(ReproduceLineExtension.class),
+                  task.getLogger());
+          task.addTestListener(listener);
+          task.doFirst(t -> listener.setIgnoreFailures(((Test) t).getIgnoreFailures()));
         });
   }
 
@@ -368,6 +650,779 @@ public abstract class TestingEnvPlugin extends AbstractPlugin {
         });
   }
 
+  /**
+   * Record failed suites and, optionally, rerun only them. Gradle already runs classes that failed
+   * in the previous run of a task first.
+   */
+  private static void configureFailedSuites(
+      Project project, BuildOptionsExtension buildOptions, TaskCollection<Test> testTasks) {
+    var failedOnlyOption =
+        buildOptions.addBooleanOption(
+            "tests.failedOnly",
+            "Run only suites that failed in previous runs, with the seed they failed with.",
+            false);
+
+    var rootSeed =
+        project
+            .getRootProject()
+            .getExtensions()
+            .getByType(RootTestingProjectExtension.class)
+            .getRootSeed();
+    boolean explicitSeed =
+        project
+                .getRootProject()
+                .getExtensions()
+                .getByType(BuildOptionsExtension.class)
+                .getOption("tests.seed")
+                .getSource()
+            != BuildOptionValueSource.COMPUTED_VALUE;
+
+    // Listeners of test tasks (by name).
+    Map<String, FailedSuitesListener> listeners = new HashMap<>();
+    var testingExtension = project.getExtensions().getByType(TestingProjectExtension.class);
+    testTasks.configureEach(
+        task -> {
+          if (testingExtension.isGenerated(task)) {
+            return;
+          }
+          Path failuresFile = historyFile(project, task.getName(), "failures.json");
+          var listener = new FailedSuitesListener(failuresFile, rootSeed.get());
+          listeners.put(task.getName(), listener);
+          task.addTestListener(listener);
+          task.doFirst(t -> pruneFailedSuites((Test) t, failuresFile));
+        });
+
+    if (!failedOnlyOption.get()) {
+      return;
+    }
+
+    // Suites are rerun with the seed each of them failed with, a separate test task per seed. Test
+    // tasks can't be registered while other test tasks are configured.
+    project.afterEvaluate(
+        p -> {
+          for (String name : new ArrayList<>(testTasks.getNames())) {
+            Path failuresFile = historyFile(project, name, "failures.json");
+            String content =
+                project
+                    .getProviders()
+                    .fileContents(
+                        project.getLayout().getProjectDirectory().file(failuresFile.toString()))
+                    .getAsText()
+                    .getOrNull();
+            var failedSuites = FailedSuites.load(failuresFile, content);
+
+            Map<String, List<String>> bySeed;
+            if (failedSuites.isEmpty()) {
+              bySeed = Map.of();
+            } else if (explicitSeed) {
+              bySeed = Map.of(rootSeed.get(), List.copyOf(failedSuites.asMap().keySet()));
+            } else {
+              bySeed = failedSuites.bySeed();
+            }
+
+            var original = testTasks.named(name);
+            if (bySeed.isEmpty()) {
+              original.configure(
+                  task -> task.onlyIf("suites failed in previous runs", t -> false));
+              continue;
+            }
+
+            TaskProvider<Test> previous = null;
+            int batch = 0;
+            for (var e : bySeed.entrySet()) {
+              String seed = e.getKey();
+              List<String> suites = e.getValue();
+              if (previous == null) {
+                original.configure(
+                    task -> {
+                      listeners.get(name).setSeed(seed);
+                      runFailedSuites(task, suites, seed);
+                    });
+                previous = original;
+                continue;
+              }
+
+              String batchName = name + "Failed" + (++batch);
+              testingExtension.markGenerated(batchName);
+              TaskProvider<Test> after = previous;
+              var batchTask =
+                  project
+                      .getTasks()
+                      .register(
+                          batchName,
+                          Test.class,
+                          task -> {
+                            Test source = original.get();
+                            task.setDescription(
+                                "Reruns suites of "
+                                    + source.getPath()
+                                    + " that failed with tests.seed="
+                                    + seed
+                                    + ".");
+                            copyTestConfiguration(source, task);
+                            task.getExtensions()
+                                .getByType(ReproduceLineExtension.class)
+                                .setTaskPath(source.getPath());
+                            task.addTestListener(new FailedSuitesListener(failuresFile, seed));
+                            // All batches update the same failures file.
+                            task.mustRunAfter(after);
+                            runFailedSuites(task, suites, seed);
+                          });
+              original.configure(task -> task.finalizedBy(batchTask));
+              previous = batchTask;
+            }
+          }
+        });
+  }
+
+  /** Forget failures of suites whose classes no longer exist. */
+  private static void pruneFailedSuites(Test task, Path failuresFile) {
+    var failedSuites = FailedSuites.load(failuresFile);
+    var classDirs = task.getTestClassesDirs().getFiles();
+    if (!failedSuites.isEmpty() && failedSuites.retainIf(suite -> classExists(classDirs, suite))) {
+      failedSuites.save();
+    }
+  }
+
+  /** Run only the given suites with a given seed (the same as --tests and -Ptests.seed). */
+  private static void runFailedSuites(Test task, List<String> suites, String seed) {
+    suites.forEach(task.getFilter()::includeTestsMatching);
+    task.systemProperty("tests.seed", seed);
+    task.getExtensions()
+        .getByType(ReproduceLineExtension.class)
+        .setGradleProperty("tests.seed", seed);
+    task.doFirst(
+        t ->
+            t.getLogger()
+                .lifecycle(
+                    "{}: running {} previously failed suite(s) with tests.seed={}",
+                    t.getPath(),
+                    suites.size(),
+                    seed));
+  }
+
+  /**
+   * Run only suites affected by changes since they last passed (test-impact analysis, see {@link
+   * TestImpactIndex}). Every {@code tests.impact.fullRunEvery}-th run is a full run. Retry and
+   * beast tasks, runs of previously failed suites and runs with explicit test filters always run
+   * what they were asked to run.
+   */
+  private static void configureTestImpact(
+      Project project, BuildOptionsExtension buildOptions, TaskCollection<Test> testTasks) {
+    var impactOption =
+        buildOptions.addBooleanOption(
+            "tests.impact", "Run only suites affected by changes since they last passed.", false);
+    var fullRunEveryOption =
+        buildOptions.addIntOption(
+            "tests.impact.fullRunEvery",
+            "Run all suites every this many runs with tests.impact enabled (1 runs all suites).",
+            20);
+
+    if (!impactOption.get()) {
+      return;
+    }
+
+    // Registered after evaluation so that retry and beast tasks aren't included.
+    project.afterEvaluate(
+        p -> {
+          if (buildOptions.getOption("tests.failedOnly").asBooleanProvider().get()
+              || buildOptions.getOption("tests.beast").isPresent()) {
+            return;
+          }
+
+          // Tests selected on the command line run as they are.
+          if (project.getGradle().getStartParameter().getTaskNames().stream()
+              .anyMatch(arg -> arg.equals("--tests") || arg.startsWith("--tests="))) {
+            return;
+          }
+
+          int fullRunEvery = Math.max(1, fullRunEveryOption.get());
+          for (String name : new ArrayList<>(testTasks.getNames())) {
+            testTasks
+                .named(name)
+                .configure(
+                    task -> {
+                      Path indexFile = historyFile(project, task.getName(), "impact.json");
+                      var listener = new TestImpactListener(indexFile);
+                      task.addTestListener(listener);
+                      task.onlyIf(
+                          "suites are affected by changes since they last passed",
+                          t -> selectAffectedSuites((Test) t, indexFile, listener, fullRunEvery));
+                    });
+          }
+        });
+  }
+
+  /**
+   * Narrow down the task's filter to suites affected by changes. Returns false if there are none.
+   */
+  private static boolean selectAffectedSuites(
+      Test task, Path indexFile, TestImpactListener listener, int fullRunEvery) {
+    var filter = task.getFilter();
+    if (!filter.getIncludePatterns().isEmpty()) {
+      return true;
+    }
+
+    Map<String, String> fingerprints;
+    try {
+      fingerprints =
+          TestImpactIndex.fingerprints(task.getClasspath(), task.getTestClassesDirs().getFiles());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    var index = TestImpactIndex.load(indexFile);
+    int runs = index.runsSinceFullRun() + 1;
+    if (runs >= fullRunEvery) {
+      listener.setRun(fingerprints, fingerprints.keySet(), 0);
+      task.getLogger()
+          .lifecycle(
+              "{}: running all suites (full run every {} runs)", task.getPath(), fullRunEvery);
+      return true;
+    }
+
+    var affected =
+        fingerprints.entrySet().stream()
+            .filter(e -> index.isAffected(e.getKey(), e.getValue()))
+            .map(Map.Entry::getKey)
+            .collect(Collectors.toCollection(TreeSet::new));
+    if (affected.isEmpty()) {
+      task.getLogger()
+          .lifecycle("{}: no suites affected by changes since they last passed", task.getPath());
+      return false;
+    }
+
+    affected.forEach(filter::includeTestsMatching);
+    filter.setFailOnNoMatchingTests(false);
+    listener.setRun(fingerprints, affected, runs);
+    task.getLogger()
+        .lifecycle(
+            "{}: running {} of {} suite(s) affected by changes ({} more run(s) until a full run)",
+            task.getPath(),
+            affected.stream().filter(c -> !index.isNonSuite(c)).count(),
+            fingerprints.keySet().stream().filter(c -> !index.isNonSuite(c)).count(),
+            fullRunEvery - runs);
+    return true;
+  }
+
+  /**
+   * Run the tests of a task (typically narrowed down with {@code --tests}) many times, each time in
+   * a new JVM and with a different root seed, to hunt for rare failures. Gradle won't run the same
+   * suite twice in one test task, so every round is a separate test task. Rounds are independent
+   * and run in parallel when Gradle runs tasks of a project in parallel (with the configuration
+   * cache enabled). Once a round fails, the rounds that haven't started yet are skipped.
+   */
+  private static void configureBeastMode(
+      Project project, BuildOptionsExtension buildOptions, TaskCollection<Test> testTasks) {
+    var beastOption =
+        buildOptions.addIntOption(
+            "tests.beast",
+            "Run tests this many times, in new JVMs and with different seeds, until one fails.");
+
+    if (!beastOption.isPresent() || beastOption.get() <= 0) {
+      return;
+    }
+
+    int rounds = beastOption.get();
+    var ext =
+        project.getRootProject().getExtensions().getByType(RootTestingProjectExtension.class);
+    var testSummary = ext.getTestsSummaryService();
+    var rootSeed = ext.getRootSeed();
+    var testingExtension = project.getExtensions().getByType(TestingProjectExtension.class);
+
+    // Test tasks can't be registered while other test tasks are configured.
+    project.afterEvaluate(
+        p -> {
+          for (String name : new ArrayList<>(testTasks.getNames())) {
+            var original = testTasks.named(name);
+            String originalPath = original.get().getPath();
+
+            var roundTasks = new ArrayList<TaskProvider<Test>>();
+            for (int round = 1; round <= rounds; round++) {
+              String seed = beastSeed(rootSeed.get(), round);
+              String roundName = name + "Beast" + round;
+              testingExtension.markGenerated(roundName);
+              roundTasks.add(
+                  project
+                      .getTasks()
+                      .register(
+                          roundName,
+                          Test.class,
+                          task -> {
+                            Test source = original.get();
+                            task.setDescription(
+                                "Runs tests of " + originalPath + " with tests.seed=" + seed + ".");
+                            copyTestConfiguration(source, task);
+                            copyTestFilter(source, task);
+                            task.setIgnoreFailures(true);
+                            task.getOutputs().upToDateWhen(t -> false);
+                            task.systemProperty("tests.seed", seed);
+
+                            var reproLine =
+                                task.getExtensions().getByType(ReproduceLineExtension.class);
+                            reproLine.setTaskPath(originalPath);
+                            reproLine.setGradleProperty("tests.seed", seed);
+
+                            task.usesService(testSummary);
+                            task.onlyIf(
+                                "no other round has failed",
+                                t -> testSummary.get().getBeastFailure(originalPath) == null);
+                            task.addTestListener(
+                                new TestsSummaryService.BeastFailureListener(
+                                    testSummary, originalPath, seed, reproLine));
+                          }));
+            }
+
+            var report =
+                project
+                    .getTasks()
+                    .register(
+                        name + "Beast",
+                        Task.class,
+                        task -> {
+                          task.setDescription(
+                              "Reports the outcome of beast rounds of " + originalPath + ".");
+                          task.dependsOn(roundTasks);
+                          task.usesService(testSummary);
+                          task.doFirst(
+                              t -> {
+                                var failure = testSummary.get().getBeastFailure(originalPath);
+                                if (failure != null) {
+                                  throw new GradleException(
+                                      String.format(
+                                          Locale.ROOT,
+                                          "%s failed with tests.seed=%s, reproduce with:%n  %s",
+                                          failure.suite(),
+                                          failure.seed(),
+                                          failure.reproLine()));
+                                }
+                                t.getLogger()
+                                    .lifecycle(
+                                        "{}: all {} beast rounds passed.", originalPath, rounds);
+                              });
+                        });
+
+            original.configure(
+                task -> {
+                  task.dependsOn(report);
+                  task.onlyIf("tests run in beast rounds", t -> false);
+                });
+          }
+        });
+  }
+
+  /** The root seed of a beast round. The first round uses the root seed of the build. */
+  private static String beastSeed(String rootSeed, int round) {
+    if (round == 1) {
+      return rootSeed;
+    }
+    return String.format(
+        Locale.ROOT, "%08X", new Random(rootSeed.hashCode() * 31L + round).nextLong());
+  }
+
+  /** Copy test filters, including ones given with {@code --tests}. */
+  private static void copyTestFilter(Test source, Test target) {
+    var from = source.getFilter();
+    var to = target.getFilter();
+    to.setIncludePatterns(from.getIncludePatterns().toArray(String[]::new));
+    to.setExcludePatterns(from.getExcludePatterns().toArray(String[]::new));
+    to.setFailOnNoMatchingTests(from.isFailOnNoMatchingTests());
+    var commandLinePatterns = commandLineTestPatterns(source);
+    if (!commandLinePatterns.isEmpty()) {
+      target.setTestNameIncludePatterns(commandLinePatterns);
+    }
+  }
+
+  /**
+   * The {@code --tests} patterns given on the command line for a test task. Only task selectors
+   * that end with the task's name or path are recognized, not abbreviated ones.
+   */
+  private static List<String> commandLineTestPatterns(Test task) {
+    var args = task.getProject().getGradle().getStartParameter().getTaskNames();
+    var patterns = new ArrayList<String>();
+    boolean selected = false;
+    for (int i = 0; i < args.size(); i++) {
+      String arg = args.get(i);
+      if (arg.equals("--tests") && i + 1 < args.size()) {
+        String pattern = args.get(++i);
+        if (selected) {
+          patterns.add(pattern);
+        }
+      } else if (arg.startsWith("--tests=")) {
+        if (selected) {
+          patterns.add(arg.substring("--tests=".length()));
+        }
+      } else if (!arg.startsWith("-")) {
+        selected = task.getPath().equals(arg) || task.getPath().endsWith(":" + arg);
+      }
+    }
+    return patterns;
+  }
+
+  /**
+   * Rerun suites that failed in a fresh set of forks (with the same seed), up to the given number
+   * of times. Retries are separate test tasks chained as finalizers of the original task. The
+   * original and all but the last retry ignore failures and pass the suites that failed on to the
+   * next retry, so the build fails only if a suite fails on every attempt (or if tests fail in a
+   * way that can't be retried, for example when a test JVM crashes).
+   */
+  private static void configureRetries(
+      Project project, BuildOptionsExtension buildOptions, TaskCollection<Test> testTasks) {
+    var retriesOption =
+        buildOptions.addIntOption(
+            "tests.retries",
+            "Rerun failed suites (in new JVMs, with the same seed) up to this many times.",
+            0);
+
+    // Retries would hide failures beast mode is looking for.
+    int retries = retriesOption.get();
+    if (retries <= 0 || buildOptions.getOption("tests.beast").isPresent()) {
+      return;
+    }
+
+    var ext =
+        project.getRootProject().getExtensions().getByType(RootTestingProjectExtension.class);
+    var testSummary = ext.getTestsSummaryService();
+    var testingExtension = project.getExtensions().getByType(TestingProjectExtension.class);
+
+    // Test tasks can't be registered while other test tasks are configured.
+    project.afterEvaluate(
+        p -> {
+          for (String name : new ArrayList<>(testTasks.getNames())) {
+            var original = testTasks.named(name);
+            Path attemptFile = historyFile(project, name, "retry.json");
+
+            original.configure(
+                task -> {
+                  task.setIgnoreFailures(true);
+                  task.doFirst(t -> deleteAttemptFile(attemptFile));
+                  var attemptListener = new FailedSuitesListener(attemptFile, taskSeed(task));
+                  task.addTestListener(attemptListener);
+                  failOnUnrecordedFailures(task, attemptListener);
+                  // Rerun if failures remained after the last attempt.
+                  task.getOutputs().upToDateWhen(t -> FailedSuites.load(attemptFile).isEmpty());
+                });
+
+            TaskProvider<Test> previous = original;
+            for (int attempt = 1; attempt <= retries; attempt++) {
+              boolean lastAttempt = attempt == retries;
+              TaskProvider<Test> previousAttempt = previous;
+              String retryName = name + "Retry" + attempt;
+              testingExtension.markGenerated(retryName);
+              var retry =
+                  project
+                      .getTasks()
+                      .register(
+                          retryName,
+                          Test.class,
+                          task -> {
+                            Test source = original.get();
+                            task.setDescription(
+                                "Reruns suites of " + source.getPath() + " that failed.");
+                            // Suites are rerun with the seed of the original task (all suites an
+                            // attempt records failed with that seed).
+                            copyTestConfiguration(source, task);
+                            task.setIgnoreFailures(!lastAttempt);
+                            // The filter is only known once the previous attempt is done.
+                            task.getOutputs().upToDateWhen(t -> false);
+
+                            var reproLine =
+                                source.getExtensions().getByType(ReproduceLineExtension.class);
+                            task.getExtensions()
+                                .getByType(ReproduceLineExtension.class)
+                                .setTaskPath(source.getPath());
+
+                            var attemptListener =
+                                new FailedSuitesListener(attemptFile, taskSeed(source));
+                            task.onlyIf(
+                                "suites failed in the previous attempt",
+                                t -> !FailedSuites.load(attemptFile).isEmpty());
+                            task.doFirst(
+                                t -> {
+                                  FailedSuites.load(attemptFile)
+                                      .asMap()
+                                      .keySet()
+                                      .forEach(((Test) t).getFilter()::includeTestsMatching);
+                                  deleteAttemptFile(attemptFile);
+                                });
+                            task.addTestListener(attemptListener);
+                            if (!lastAttempt) {
+                              failOnUnrecordedFailures(task, attemptListener);
+                            }
+
+                            task.usesService(testSummary);
+                            task.addTestListener(
+                                new TestsSummaryService.FlakySuitesListener(
+                                    testSummary,
+                                    source.getPath(),
+                                    previousAttempt.get().getPath(),
+                                    reproLine));
+                          });
+              previous.configure(task -> task.finalizedBy(retry));
+              previous = retry;
+            }
+          }
+        });
+  }
+
+  /** The seed a test task runs with. */
+  private static String taskSeed(Test task) {
+    return String.valueOf(task.getSystemProperties().get("tests.seed"));
+  }
+
+  /**
+   * Fail a task that ignores failures (so that failed suites can be retried) if it failed in a way
+   * that can't be retried, for example when a test JVM crashed or exited.
+   */
+  private static void failOnUnrecordedFailures(Test task, FailedSuitesListener listener) {
+    task.doLast(
+        t -> {
+          if (listener.hasUnrecordedFailures()) {
+            throw new GradleException(
+                "Tests failed in a way that can't be retried (for example, a test JVM crashed"
+                    + " or exited), see the test report: "
+                    + t.getPath());
+          }
+        });
+  }
+
+  private static void deleteAttemptFile(Path attemptFile) {
+    try {
+      Files.deleteIfExists(attemptFile);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Copy the configuration of a test task that matters for running its tests. Argument providers
+   * are not copied, this plugin adds its own to every test task.
+   */
+  private static void copyTestConfiguration(Test source, Test target) {
+    target.setTestClassesDirs(source.getTestClassesDirs());
+    target.setClasspath(source.getClasspath());
+    target.getJavaLauncher().set(source.getJavaLauncher());
+    var options = source.getOptions();
+    if (options instanceof JUnitPlatformOptions platformOptions) {
+      target.useJUnitPlatform(o -> o.copyFrom(platformOptions));
+    } else if (options instanceof TestNGOptions testNgOptions) {
+      target.useTestNG(o -> o.copyFrom(testNgOptions));
+    } else if (options instanceof JUnitOptions junitOptions) {
+      target.useJUnit(o -> o.copyFrom(junitOptions));
+    }
+    target.setIncludes(source.getIncludes());
+    target.setExcludes(source.getExcludes());
+    target.setJvmArgs(source.getJvmArgs());
+    target.systemProperties(source.getSystemProperties());
+    target.environment(source.getEnvironment());
+    target.setMinHeapSize(source.getMinHeapSize());
+    target.setMaxHeapSize(source.getMaxHeapSize());
+    target.setEnableAssertions(source.getEnableAssertions());
+    target.setBootstrapClasspath(source.getBootstrapClasspath());
+    target.setMaxParallelForks(source.getMaxParallelForks());
+    target.setForkEvery(source.getForkEvery());
+  }
+
+  /**
+   * Run only a stable subset of suites in every test task, so that test work can be split across
+   * machines.
+   */
+  private static void configureSharding(
+      Project project, BuildOptionsExtension buildOptions, TaskCollection<Test> testTasks) {
+    var shardOption =
+        buildOptions.addOption(
+            "tests.shard", "Run only the given shard of test suites (index/count, 1-based).");
+    var shardDurationsOption =
+        buildOptions.addOption(
+            "tests.shard.durations",
+            "A JSON file with suite durations (root-project relative) to balance shards with.");
+
+    if (!shardOption.isPresent()) {
+      return;
+    }
+
+    Path durationsFile =
+        shardDurationsOption.isPresent()
+            ? project
+                .getRootProject()
+                .getLayout()
+                .getProjectDirectory()
+                .file(shardDurationsOption.get())
+                .getAsFile()
+                .toPath()
+            : null;
+    TestShard shard = TestShard.parse(shardOption.get(), durationsFile);
+
+    testTasks.configureEach(
+        task -> {
+          task.exclude(shard.otherShards());
+          task.getInputs().property("tests.shard", shard.toString());
+          if (durationsFile != null) {
+            task.getInputs()
+                .file(durationsFile)
+                .withPropertyName("tests.shard.durations")
+                .withPathSensitivity(PathSensitivity.NONE);
+          }
+
+          var reproLine = task.getExtensions().getByType(ReproduceLineExtension.class);
+          reproLine.addBuildOption(buildOptions.getOption("tests.shard"));
+          reproLine.addBuildOption(buildOptions.getOption("tests.shard.durations"));
+        });
+  }
+
+  /**
+   * Train and use class-data sharing archives to speed up the startup of test forks. Archives are
+   * kept under the build directory, keyed by a fingerprint of the java launcher and classpath.
+   */
+  private static void configureCds(
+      Project project, BuildOptionsExtension buildOptions, TaskCollection<Test> testTasks) {
+    var cdsOption =
+        buildOptions.addBooleanOption(
+            "tests.cds",
+            "Train and use a class-data sharing archive of the test classpath in test JVMs.",
+            false);
+
+    if (!cdsOption.get()) {
+      return;
+    }
+
+    // Gradle's worker jar is the first entry on the class path of every test fork.
+    File workerJar =
+        project
+            .getGradle()
+            .getGradleUserHomeDir()
+            .toPath()
+            .resolve("caches")
+            .resolve(GradleVersion.current().getVersion())
+            .resolve("workerMain")
+            .resolve("gradle-worker.jar")
+            .toFile();
+    Path archivesDir =
+        project.getLayout().getBuildDirectory().dir(TEST_CDS_DIR).get().getAsFile().toPath();
+
+    testTasks.configureEach(
+        task -> {
+          var cds =
+              new TestCdsArchive(
+                  archivesDir,
+                  workerJar,
+                  task.getPath(),
+                  task.getJavaLauncher(),
+                  project.files(project.provider(task::getClasspath)));
+          task.getJvmArgumentProviders().add(cds);
+          task.addTestListener(cds);
+        });
+  }
+
+  /**
+   * Record every test fork with JFR and print a merged summary of hot methods and allocation sites
+   * once the task completes.
+   */
+  private static void configureProfiling(
+      Project project, BuildOptionsExtension buildOptions, TaskCollection<Test> testTasks) {
+    var profileOption =
+        buildOptions.addBooleanOption(
+            "tests.profile",
+            "Record test JVMs with JFR and summarize hot methods and allocation sites.",
+            false);
+    var profileTopOption =
+        buildOptions.addIntOption(
+            "tests.profile.top",
+            "The number of hot methods and allocation sites to include in the profile summary.",
+            10);
+
+    if (!profileOption.get()) {
+      return;
+    }
+
+    int topN = profileTopOption.get();
+    testTasks.configureEach(
+        task -> {
+          // Recordings go next to suite outputs, which are cleaned up before the task runs.
+          Path recordingsDir =
+              project
+                  .getLayout()
+                  .getBuildDirectory()
+                  .dir(TEST_OUTPUTS_DIR + "/" + task.getName())
+                  .get()
+                  .getAsFile()
+                  .toPath();
+
+          task.getOutputs().upToDateWhen(t -> false);
+          task.getJvmArgumentProviders()
+              .add(
+                  new CommandLineArgumentProvider() {
+                    @Override
+                    public Iterable<String> asArguments() {
+                      // JFR won't create the directory and a doFirst action would run before
+                      // outputs are cleaned up, so create it right before forks are started.
+                      try {
+                        Files.createDirectories(recordingsDir);
+                      } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                      }
+                      return List.of(
+                          "-XX:StartFlightRecording=settings=profile,dumponexit=true,filename="
+                              + recordingsDir.resolve("profile-%p.jfr"));
+                    }
+                  });
+          // A listener rather than a doLast action, so that failing runs are summarized too.
+          task.addTestListener(new JfrProfileListener(task.getPath(), recordingsDir, topN));
+        });
+  }
+
+  /** Log GC activity of test forks and collect heap and GC statistics for the tests summary. */
+  private static void configureGcStats(
+      Project project, BuildOptionsExtension buildOptions, TaskCollection<Test> testTasks) {
+    var gcStatsOption =
+        buildOptions.addBooleanOption(
+            "tests.gc",
+            "Collect heap and GC statistics of test JVMs for the tests summary.",
+            false);
+
+    if (!gcStatsOption.get()) {
+      return;
+    }
+
+    var testSummary =
+        project
+            .getRootProject()
+            .getExtensions()
+            .getByType(RootTestingProjectExtension.class)
+            .getTestsSummaryService();
+
+    testTasks.configureEach(
+        task -> {
+          Path gcLogsDir =
+              project
+                  .getLayout()
+                  .getBuildDirectory()
+                  .dir(TEST_OUTPUTS_DIR + "/" + task.getName())
+                  .get()
+                  .getAsFile()
+                  .toPath();
+
+          task.getJvmArgumentProviders()
+              .add(
+                  new CommandLineArgumentProvider() {
+                    @Override
+                    public Iterable<String> asArguments() {
+                      // See the comment in configureProfiling.
+                      try {
+                        Files.createDirectories(gcLogsDir);
+                      } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                      }
+                      return List.of(GcLogStats.logOption(gcLogsDir));
+                    }
+                  });
+
+          task.usesService(testSummary);
+          task.addTestListener(
+              new TestsSummaryService.GcStatsListener(testSummary, task.getPath(), gcLogsDir));
+        });
+  }
+
   /** Configure tunable defaults for all Test tasks. */
   private void configureTestTaskOptions(
       Project project, BuildOptionsExtension buildOptions, TaskCollection<Test> testTasks) {
@@ -379,11 +1434,21 @@ public abstract class TestingEnvPlugin extends AbstractPlugin {
             "Additional arguments to pass directly to the forked test runner JVMs.");
     var minHeapOption = buildOptions.addOption("tests.minheap", "Minimum heap size for test JVMs.");
     var maxHeapOption = buildOptions.addOption("tests.maxheap", "Maximum heap size for test JVMs.");
+    var threadsOption =
+        buildOptions.addIntOption(
+            "tests.threads",
+            "Test threads per test JVM (JUnit Platform), 0 splits CPUs between JVMs and threads.",
+            1);
+    var threadsModeOption =
+        buildOptions.addOption(
+            "tests.threads.mode",
+            "Run test classes or test methods concurrently with tests.threads (classes, methods).",
+            "classes");
     var jvmsOption =
         buildOptions.addIntOption(
             "tests.jvms",
             "The number of forked test JVMs.",
-            project.getProviders().provider(() -> defaultTestJvms()));
+            defaultTestJvms(project, maxHeapOption, threadsOption));
 
     var echoOutputOnError =
         buildOptions.addBooleanOption(
@@ -395,6 +1460,74 @@ public abstract class TestingEnvPlugin extends AbstractPlugin {
         buildOptions.addBooleanOption(
             "tests.verbose", "Echo all stdout/stderr from tests to gradle console.", false);
 
+    var outputMemoryBudgetOption =
+        buildOptions.addIntOption(
+            "tests.output.memoryBudget",
+            "Memory budget (in MB) for buffering the output of all running suites of a test task.",
+            64);
+
+    var retainHeadOption =
+        buildOptions.addIntOption(
+            "tests.output.retainHead",
+            "Retain only this many leading KB of each suite's output (0 retains everything).",
+            0);
+
+    var retainTailOption =
+        buildOptions.addIntOption(
+            "tests.output.retainTail",
+            "Retain only this many trailing KB of each suite's output (0 retains everything).",
+            0);
+
+    var asyncOutputOption =
+        buildOptions.addBooleanOption(
+            "tests.output.async",
+            "Process test output on a dedicated thread instead of Gradle's test event thread.",
+            false);
+
+    var suiteOutputQuotaOption =
+        buildOptions.addIntOption(
+            "tests.output.suiteQuota",
+            "Drop the output of a suite beyond this many MB (0 is unlimited).",
+            0);
+
+    var taskOutputQuotaOption =
+        buildOptions.addIntOption(
+            "tests.output.taskQuota",
+            "Drop the output of a test task beyond this many MB (0 is unlimited).",
+            0);
+
+    var failOnOutputQuotaOption =
+        buildOptions.addBooleanOption(
+            "tests.output.failOnQuota",
+            "Fail test tasks with suites that exceeded an output quota.",
+            false);
+
+    var watchdogTimeoutOption =
+        buildOptions.addIntOption(
+            "tests.watchdog.timeout",
+            "Dump threads of test JVMs that had no test events for this many seconds (0 disables).",
+            0);
+
+    var watchdogKillOption =
+        buildOptions.addBooleanOption(
+            "tests.watchdog.kill",
+            "Kill test JVMs after the watchdog has taken their thread dump.",
+            false);
+
+    var failureGroupReportsOption =
+        buildOptions.addIntOption(
+            "tests.failures.reportSame",
+            "Report the output of at most this many suites failing with the same exception (0 for"
+                + " all), summarize the rest.",
+            3);
+
+    var forksFromHistoryOption =
+        buildOptions.addBooleanOption(
+            "tests.jvms.fromHistory",
+            "Record suite execution times and use them to skip forked JVMs that wouldn't shorten"
+                + " the wall time.",
+            false);
+
     var cwdDirOption =
         buildOptions.addOption(
             "tests.cwd.dir",
@@ -407,6 +1540,39 @@ public abstract class TestingEnvPlugin extends AbstractPlugin {
             "Temporary directory for test JVMs (build-dir relative).",
             project.provider(() -> buildDirRelative(project, "test-tmp").toString()));
 
+    var forkDirsOption =
+        buildOptions.addBooleanOption(
+            "tests.forkDirs",
+            "Give each test JVM its own subdirectory of the working and temporary directory.",
+            false);
+
+    var diskUsageWarnOption =
+        buildOptions.addIntOption(
+            "tests.diskUsage.warn",
+            "Warn about suites that use this many MB in their fork directories (0 disables).",
+            256);
+
+    var javaExtension = project.getExtensions().findByType(JavaPluginExtension.class);
+    boolean forkDirs =
+        forkDirsOption.get()
+            && javaExtension != null
+            && !System.getProperty("os.name", "").toLowerCase(Locale.ROOT).startsWith("windows");
+    Provider<JavaLauncher> forkDirsLauncher =
+        forkDirs
+            ? getJavaToolchains()
+                .launcherFor(javaExtension.getToolchain())
+                .map(
+                    launcher ->
+                        new ForkDirectories.Launcher(
+                            launcher,
+                            project
+                                .getLayout()
+                                .getBuildDirectory()
+                                .file(FORK_LAUNCHER_SCRIPT)
+                                .get()))
+            : null;
+
+    var testingExtension = project.getExtensions().getByType(TestingProjectExtension.class);
     testTasks.configureEach(
         task -> {
           var projectDir = project.getLayout().getProjectDirectory();
@@ -419,22 +1585,30 @@ public abstract class TestingEnvPlugin extends AbstractPlugin {
           DirectoryProperty cwdDir = project.getObjects().directoryProperty();
           cwdDir.set(projectDir.dir(cwdDirOption));
           task.setWorkingDir(cwdDir);
-          task.doFirst(
-              t -> {
-                try {
-                  Files.createDirectories(cwdDir.get().getAsFile().toPath());
-                } catch (IOException e) {
-                  throw new UncheckedIOException(e);
-                }
-              });
 
           DirectoryProperty tmpDir = project.getObjects().directoryProperty();
           tmpDir.set(projectDir.dir(tmpDirOption));
-          task.systemProperty("java.io.tmpdir", tmpDir.get().getAsFile().getAbsolutePath());
+
+          Path cwdBase = cwdDir.get().getAsFile().toPath();
+          Path tmpBase = tmpDir.get().getAsFile().toPath();
+          if (forkDirs) {
+            // java.io.tmpdir is set by the launcher script, per fork.
+            installForkDirectories(
+                project,
+                task,
+                forkDirsLauncher,
+                cwdBase,
+                tmpBase,
+                diskUsageWarnOption.get() * 1024L * 1024L);
+          } else {
+            task.systemProperty("java.io.tmpdir", tmpBase.toAbsolutePath().toString());
+          }
+
           task.doFirst(
               t -> {
                 try {
-                  Files.createDirectories(tmpDir.get().getAsFile().toPath());
+                  Files.createDirectories(cwdBase);
+                  Files.createDirectories(tmpBase);
                 } catch (IOException e) {
                   throw new UncheckedIOException(e);
                 }
@@ -472,20 +1646,149 @@ public abstract class TestingEnvPlugin extends AbstractPlugin {
           boolean verboseMode = verboseOption.get();
 
           // set the maximum number of parallel forks.
-          if (verboseMode || jvmsOption.isPresent()) {
-            int forks = jvmsOption.getOrElse(1);
-            if (verboseMode && forks > 1) {
-              task.getLogger().info("${task.path}.maxParallelForks forced to 1 in verbose mode.");
-              forks = 1;
-            }
-            task.setMaxParallelForks(forks);
+          if (jvmsOption.isPresent()) {
+            task.setMaxParallelForks(jvmsOption.get());
+          }
+
+          // run tests concurrently within forks.
+          int threads =
+              threadsOption.get() > 0
+                  ? threadsOption.get()
+                  : DefaultTestJvms.threads(task.getMaxParallelForks());
+          if (threads > 1) {
+            configureTestThreads(task, threads, threadsModeOption.get());
+            reproLineExtension.addGradleProperty("tests.threads", Integer.toString(threads));
+            reproLineExtension.addGradleProperty("tests.threads.mode", threadsModeOption.get());
+          }
+
+          // acquire forks from the build-wide budget (after they're capped).
+          var forkBudget =
+              project
+                  .getRootProject()
+                  .getExtensions()
+                  .getByType(RootTestingProjectExtension.class)
+                  .getTestForkBudgetService();
+          if (forkBudget != null) {
+            task.usesService(forkBudget);
+            int cpusPerFork = threads;
+            task.doFirst(t -> acquireForks((Test) t, forkBudget, cpusPerFork));
+          }
+
+          // record suite execution times and use them to cap forks on subsequent runs.
+          if (forksFromHistoryOption.get() && !testingExtension.isGenerated(task)) {
+            Path durationsFile = historyFile(project, task.getName(), "durations.json");
+            task.addTestListener(new SuiteDurationsListener(durationsFile));
+            task.doFirst(t -> pruneDurations((Test) t, durationsFile));
+            task.doFirst(t -> capForks((Test) t, durationsFile));
           }
 
           // install stdout/stderr handlers.
-          installOutputHandlers(task, getFilesystemOps(), verboseMode, echoOutputOnError.get());
+          installOutputHandlers(
+              task,
+              verboseMode,
+              echoOutputOnError.get(),
+              outputMemoryBudgetOption.get() * 1024L * 1024L,
+              retainHeadOption.get() * 1024L,
+              retainTailOption.get() * 1024L,
+              asyncOutputOption.get(),
+              suiteOutputQuotaOption.get() * 1024L * 1024L,
+              taskOutputQuotaOption.get() * 1024L * 1024L,
+              failOnOutputQuotaOption.get(),
+              watchdogTimeoutOption.get() * 1000L,
+              watchdogKillOption.get(),
+              failureGroupReportsOption.get());
+        });
+  }
+
+  /**
+   * Run tests concurrently within each fork, with JUnit Platform's (Jupiter's) parallel execution:
+   * either test classes concurrently (and methods of a class sequentially) or methods of a class
+   * concurrently (and classes one at a time). JUnit 4 runners, including randomizedtesting's, run
+   * one suite at a time in a JVM so forks are their only parallelism.
+   */
+  private static void configureTestThreads(Test task, int threads, String mode) {
+    boolean concurrentMethods =
+        switch (mode) {
+          case "classes" -> false;
+          case "methods" -> true;
+          default ->
+              throw new GradleException(
+                  "tests.threads.mode should be 'classes' or 'methods': " + mode);
+        };
+
+    String prefix = "junit.jupiter.execution.parallel.";
+    task.systemProperty(prefix + "enabled", "true");
+    task.systemProperty(prefix + "mode.default", concurrentMethods ? "concurrent" : "same_thread");
+    task.systemProperty(
+        prefix + "mode.classes.default", concurrentMethods ? "same_thread" : "concurrent");
+    task.systemProperty(prefix + "config.strategy", "fixed");
+    task.systemProperty(prefix + "config.fixed.parallelism", Integer.toString(threads));
+    task.systemProperty(prefix + "config.fixed.max-pool-size", Integer.toString(threads));
+
+    task.doFirst(
+        t -> {
+          if (!(((Test) t).getOptions() instanceof JUnitPlatformOptions)) {
+            t.getLogger()
+                .warn(
+                    "{}: tests.threads has no effect, tests don't run on the JUnit Platform.",
+                    t.getPath());
+          } else {
+            t.getLogger()
+                .info("{}: {} test threads per JVM ({} concurrently)", t.getPath(), threads, mode);
+          }
         });
   }
 
+  /**
+   * Start each fork in its own subdirectory of the working and temporary directory (see {@link
+   * ForkDirectories}), clean up directories of forks that are no longer running and report how much
+   * disk space each suite uses.
+   */
+  private static void installForkDirectories(
+      Project project,
+      Test task,
+      Provider<JavaLauncher> launcher,
+      Path cwdBase,
+      Path tmpBase,
+      long diskUsageWarn) {
+    task.getJavaLauncher().set(launcher);
+    task.doFirst(
+        t -> {
+          // Skip if the launcher has been changed explicitly.
+          if (((Test) t).getJavaLauncher().get() instanceof ForkDirectories.Launcher l) {
+            ForkDirectories.cleanStale(cwdBase, tmpBase);
+            ForkDirectories.writeScript(
+                l.getExecutablePath().getAsFile().toPath(),
+                l.getJavaExecutable(),
+                cwdBase,
+                tmpBase);
+          }
+        });
+
+    Path reportFile =
+        project
+            .getLayout()
+            .getBuildDirectory()
+            .file(TEST_OUTPUTS_DIR + "/" + task.getName() + "/disk-usage.json")
+            .get()
+            .getAsFile()
+            .toPath();
+    task.addTestListener(
+        new SuiteDiskUsageListener(task.getPath(), cwdBase, tmpBase, reportFile, diskUsageWarn));
+  }
+
+  /** A file under the test history directory, specific to the given task. */
+  private static Path historyFile(Project project, String taskName, String name) {
+    return project
+        .getLayout()
+        .getBuildDirectory()
+        .dir(TEST_HISTORY_DIR)
+        .get()
+        .getAsFile()
+        .toPath()
+        .resolve(taskName + "-" + name);
+  }
+
   private static @NotNull Path buildDirRelative(Project project, String dir) {
     return project
         .getProjectDir()
@@ -496,9 +1799,18 @@ public abstract class TestingEnvPlugin extends AbstractPlugin {
   /** Set up error logging and a custom error stream redirector. */
   private void installOutputHandlers(
       Test task,
-      FileSystemOperations filesystemOps,
       boolean verboseMode,
-      boolean fullOutputOnError) {
+      boolean fullOutputOnError,
+      long outputMemoryBudget,
+      long retainHead,
+      long retainTail,
+      boolean asyncOutput,
+      long suiteOutputQuota,
+      long taskOutputQuota,
+      boolean failOnOutputQuota,
+      long watchdogTimeout,
+      boolean watchdogKill,
+      int failureGroupReports) {
     BuildOptionsExtension buildOptions =
         task.getProject().getExtensions().getByType(BuildOptionsExtension.class);
 
@@ -529,10 +1841,8 @@ public abstract class TestingEnvPlugin extends AbstractPlugin {
 
     task.doFirst(
         (t) -> {
-          filesystemOps.delete(
-              spec -> {
-                spec.delete(testOutputsDir.toFile());
-              });
+          // Move the outputs of the previous run aside and delete them in the background.
+          ForkDirectories.deleteInBackground(List.of(testOutputsDir));
         });
 
     DefaultTestLogging logging = new DefaultTestLogging();
@@ -545,32 +1855,219 @@ public abstract class TestingEnvPlugin extends AbstractPlugin {
       logging.getStackTraceFilters().clear();
     }
 
-    StyledTextOutput styledOut;
-    if (getBuildFeatures().getConfigurationCache().getRequested().getOrElse(false)) {
-      styledOut = null;
-    } else {
-      styledOut = getStyledOutputFactory().create(this.getClass());
+    var rootExtension =
+        task.getProject()
+            .getRootProject()
+            .getExtensions()
+            .getByType(RootTestingProjectExtension.class);
+    var console = rootExtension.getTestsConsoleService();
+    task.usesService(console);
+    var testSummary = rootExtension.getTestsSummaryService();
+    task.usesService(testSummary);
+
+    if (failOnOutputQuota) {
+      String taskPath = task.getPath();
+      task.doLast(
+          t -> {
+            var suites = testSummary.get().getOutputQuotaViolations(taskPath);
+            if (!suites.isEmpty()) {
+              throw new GradleException(
+                  "Suites exceeded the output quota (tests.output.suiteQuota or"
+                      + " tests.output.taskQuota): "
+                      + String.join(", ", suites));
+            }
+          });
     }
 
     var listener =
         new ErrorReportingTestListener(
             task.getLogger(),
-            styledOut,
+            console,
+            task.getProject().getObjects().newInstance(ConsoleStyling.class),
+            testSummary,
+            task.getPath(),
             task.getExtensions().findByType(ReproduceLineExtension.class),
             logging,
             spillDir,
             testOutputsDir,
             verboseMode,
-            fullOutputOnError);
+            fullOutputOnError,
+            outputMemoryBudget,
+            retainHead,
+            retainTail,
+            asyncOutput,
+            suiteOutputQuota,
+            taskOutputQuota,
+            watchdogTimeout,
+            watchdogKill,
+            failureGroupReports);
     task.addTestOutputListener(listener);
     task.addTestListener(listener);
   }
 
   /**
-   * The default number of JVMs is dynamic and depends on the number of available CPUs. Capped at 8.
+   * Limit the task's forks to what's left of the build-wide budget of test JVMs (see {@link
+   * TestForkBudgetService}), waiting until at least one fork fits.
+   */
+  private static void acquireForks(
+      Test task, Provider<TestForkBudgetService> forkBudget, int cpusPerFork) {
+    long heap =
+        task.getMaxHeapSize() == null
+            ? DefaultTestJvms.ASSUMED_HEAP
+            : DefaultTestJvms.parseHeapSize(task.getMaxHeapSize())
+                .orElse(DefaultTestJvms.ASSUMED_HEAP);
+    int requested = task.getMaxParallelForks();
+    int granted;
+    try {
+      granted =
+          forkBudget
+              .get()
+              .acquire(
+                  task.getPath(), requested, cpusPerFork, heap + DefaultTestJvms.FORK_OVERHEAD);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GradleException("Interrupted while waiting for the test JVM budget.", e);
+    }
+
+    if (granted < requested) {
+      task.setMaxParallelForks(granted);
+      task.getLogger()
+          .info(
+              "{}: {} of {} test JVM(s) fit in the build-wide budget (tests.budget)",
+              task.getPath(),
+              granted,
+              requested);
+    }
+  }
+
+  /**
+   * Gradle decides which fork runs which suite as the suites are scanned, so we can't assign suites
+   * to forks. What we can do is avoid starting forks that won't make the task finish any sooner:
+   * the task can't take less time than its longest suite, so no more than {@code total / longest}
+   * forks are useful, whatever order the suites are run in.
    */
-  private static int defaultTestJvms() {
-    return ((int) Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() / 2.0, 8.0)));
+  private static void capForks(Test task, Path durationsFile) {
+    int forks = task.getMaxParallelForks();
+    var durations = SuiteDurations.load(durationsFile);
+    if (forks <= 1 || durations.isEmpty()) {
+      return;
+    }
+
+    var costs = durations.asMap();
+    int useful = SuiteDurations.usefulForks(costs, forks);
+    task.getLogger()
+        .info(
+            "{}: {} of {} fork(s) useful for {} suite(s), the longest takes {} ms of {} ms total",
+            task.getPath(),
+            useful,
+            forks,
+            costs.size(),
+            costs.values().stream().mapToLong(Long::longValue).max().orElse(0),
+            costs.values().stream().mapToLong(Long::longValue).sum());
+
+    if (useful < forks) {
+      task.setMaxParallelForks(useful);
+    }
+  }
+
+  /** Remove suites whose classes no longer exist from the recorded execution times. */
+  private static void pruneDurations(Test task, Path durationsFile) {
+    var durations = SuiteDurations.load(durationsFile);
+    if (durations.isEmpty()) {
+      return;
+    }
+
+    var classDirs = task.getTestClassesDirs().getFiles();
+    if (durations.retainIf(suite -> classExists(classDirs, suite))) {
+      durations.save();
+    }
+  }
+
+  private static boolean classExists(Set<File> classDirs, String className) {
+    String classFile = className.replace('.', '/') + ".class";
+    return classDirs.stream().anyMatch(dir -> new File(dir, classFile).isFile());
+  }
+
+  /**
+   * The default number of forks, computed (once per project) from the available CPUs and memory.
+   * Test tasks running concurrently share them through the build-wide fork budget ({@code
+   * tests.budget}).
+   */
+  private static Provider<Integer> defaultTestJvms(
+      Project project, Provider<String> maxHeap, Provider<Integer> threads) {
+    Property<Integer> jvms = project.getObjects().property(Integer.class);
+    jvms.set(
+        project
+            .getProviders()
+            .provider(
+                () -> {
+                  var decision = DefaultTestJvms.compute(maxHeap.getOrNull(), threads.get());
+                  project
+                      .getLogger()
+                      .info(
+                          "Default tests.jvms for {}: {} ({})",
+                          project.getPath(),
+                          decision.jvms(),
+                          decision.reason());
+                  return decision.jvms();
+                }));
+    jvms.finalizeValueOnRead();
+    return jvms;
+  }
+
+  /**
+   * Record test results in a single NDJSON file per task instead of per-suite JUnit XML files and
+   * render reports from these files on demand.
+   */
+  private static void configureCompactResults(
+      Project project, BuildOptionsExtension buildOptions, TaskCollection<Test> testTasks) {
+    var compactResultsOption =
+        buildOptions.addBooleanOption(
+            "tests.compactResults",
+            "Record test results in one file per task and render reports on demand.",
+            false);
+
+    if (!compactResultsOption.get()) {
+      return;
+    }
+
+    var resultsDir = project.getLayout().getBuildDirectory().dir(TEST_RESULTS_DIR);
+    var testingExtension = project.getExtensions().getByType(TestingProjectExtension.class);
+    // Tasks that rerun tests of another task keep Gradle's own reports.
+    testTasks.configureEach(
+        task -> {
+          if (testingExtension.isGenerated(task)) {
+            return;
+          }
+          var resultsFile = resultsDir.get().file(TestResults.fileName(task.getName()));
+          task.reports(reports -> reports.getJunitXml().getRequired().set(false));
+          task.getOutputs().file(resultsFile);
+          var listener = new TestResultsListener(resultsFile.getAsFile().toPath());
+          task.addTestListener(listener);
+          task.addTestOutputListener(listener);
+        });
+
+    project
+        .getTasks()
+        .register(
+            TEST_REPORTS_TASK_NAME,
+            TestReportsTask.class,
+            task -> {
+              task.setGroup(JavaBasePlugin.VERIFICATION_GROUP);
+              task.setDescription("Renders test reports from the results of the last test runs.");
+              task.getResults()
+                  .from(
+                      project.provider(
+                          () ->
+                              testTasks.getNames().stream()
+                                  .map(name -> resultsDir.get().file(TestResults.fileName(name)))
+                                  .toList()));
+              task.getFormats().convention(List.of(TestReportsTask.XML, TestReportsTask.HTML));
+              task.getDestination()
+                  .convention(project.getLayout().getBuildDirectory().dir(TEST_REPORTS_DIR));
+              // Render whatever results exist, but after any tests that run in the same build.
+              task.mustRunAfter(testTasks);
+            });
   }
 
   /** Disable HTML report generation. The reports are big and slow to generate. */
@@ -0,0 +1,117 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+import org.gradle.internal.logging.text.StyledTextOutput;
+
+/**
+ * Console output shared by all test tasks. Each report is emitted atomically so that concurrently
+ * running tasks do not interleave their output.
+ */
+public abstract class TestsConsoleService implements BuildService<BuildServiceParameters.None> {
+  public static final String NAME = "buildInfra-testsConsole";
+
+  private static final Logger LOGGER = Logging.getLogger(TestingEnvPlugin.class);
+
+  /**
+   * Report a failed suite, optionally with a copy of its output. Reports are emitted via a logger
+   * if styled output is not available.
+   */
+  public synchronized void reportFailedSuite(
+      StyledTextOutput styledOut,
+      String suiteName,
+      String reproLine,
+      Path outputLog,
+      long maxEchoedOutput)
+      throws IOException {
+    if (styledOut == null) {
+      reportFailedSuitePlain(suiteName, reproLine, outputLog, maxEchoedOutput);
+      return;
+    }
+
+    styledOut.append("\n");
+    styledOut
+        .append(suiteName)
+        .append(" > ")
+        .style(StyledTextOutput.Style.Failure)
+        .append("TESTS FAILED\n")
+        .style(StyledTextOutput.Style.Normal);
+
+    if (reproLine != null) {
+      styledOut
+          .append("    reproduce with: ")
+          .style(StyledTextOutput.Style.Success)
+          .append(reproLine)
+          .style(StyledTextOutput.Style.Normal)
+          .append("\n");
+    }
+
+    styledOut
+        .append("    test suite's output: ")
+        .style(StyledTextOutput.Style.Success)
+        .append(outputLog.toString())
+        .style(StyledTextOutput.Style.Normal);
+
+    long size = Files.size(outputLog);
+    if (size > maxEchoedOutput) {
+      styledOut.append(" (too large to display here: " + size + " bytes).\n");
+    } else {
+      styledOut.append(" (copied below):\n");
+      styledOut.style(StyledTextOutput.Style.Info);
+      forEachChunk(outputLog, styledOut::append);
+    }
+  }
+
+  private static void reportFailedSuitePlain(
+      String suiteName, String reproLine, Path outputLog, long maxEchoedOutput)
+      throws IOException {
+    StringBuilder msg = new StringBuilder();
+    msg.append("\n").append(suiteName).append(" > TESTS FAILED\n");
+    if (reproLine != null) {
+      msg.append("    reproduce with: ").append(reproLine).append("\n");
+    }
+    msg.append("    test suite's output: ").append(outputLog);
+
+    long size = Files.size(outputLog);
+    if (size > maxEchoedOutput) {
+      LOGGER.lifecycle(msg.append(" (too large to display here: " + size + " bytes).").toString());
+    } else {
+      LOGGER.lifecycle(msg.append(" (copied below):").toString());
+      forEachChunk(outputLog, chunk -> LOGGER.lifecycle(chunk.stripTrailing()));
+    }
+  }
+
+  private static final int ECHO_CHUNK_SIZE = 64 * 1024;
+
+  /**
+   * Stream the content of a (possibly large) output log in line-aligned chunks, without loading it
+   * into memory at once.
+   */
+  static void forEachChunk(Path file, Consumer<String> consumer) throws IOException {
+    try (var reader =
+        new BufferedReader(
+            new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8))) {
+      StringBuilder chunk = new StringBuilder();
+      String line;
+      while ((line = reader.readLine()) != null) {
+        chunk.append(line).append('\n');
+        if (chunk.length() >= ECHO_CHUNK_SIZE) {
+          consumer.accept(chunk.toString());
+          chunk.setLength(0);
+        }
+      }
+      if (!chunk.isEmpty()) {
+        consumer.accept(chunk.toString());
+      }
+    }
+  }
+}
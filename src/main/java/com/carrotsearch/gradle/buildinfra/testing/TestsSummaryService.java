@@ -0,0 +1,470 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+import org.gradle.api.tasks.testing.TestDescriptor;
+import org.gradle.api.tasks.testing.TestListener;
+import org.gradle.api.tasks.testing.TestResult;
+
+/** Aggregates test statistics from all test tasks executed in the build. */
+public abstract class TestsSummaryService
+    implements BuildService<TestsSummaryService.Parameters> {
+  public static final String NAME = "buildInfra-testsSummary";
+
+  public interface Parameters extends BuildServiceParameters {
+    /** The number of slowest suites and tests to keep for the timings report. */
+    Property<Integer> getSlowestCount();
+  }
+
+  private final LongAdder testTasksExecuted = new LongAdder();
+  private final LongAdder tests = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private final LongAdder ignored = new LongAdder();
+
+  /** Test, failure and ignored test counts by task and suite. */
+  private final Map<String, long[]> suiteCounts = new ConcurrentHashMap<>();
+  private TestTimings timings;
+  private final Queue<FlakySuite> flakySuites = new ConcurrentLinkedQueue<>();
+  private final Queue<TaskGcStats> gcStats = new ConcurrentLinkedQueue<>();
+  private final Map<String, BeastFailure> beastFailures = new ConcurrentHashMap<>();
+  private final PriorityQueue<NoisySuite> noisiestSuites =
+      new PriorityQueue<>(Comparator.comparingLong(NoisySuite::bytes));
+  private final Map<String, Queue<String>> outputQuotaViolations = new ConcurrentHashMap<>();
+  private final Queue<FailedSuite> failFastSuites = new ConcurrentLinkedQueue<>();
+  private final Set<String> runningForks = ConcurrentHashMap.newKeySet();
+  private volatile boolean failFastStopped;
+
+  /** The number of suites with the most output to keep for the summary. */
+  static final int NOISIEST_SUITES = 10;
+
+  /** A suite that failed and then passed when retried. */
+  public record FlakySuite(String task, String suite, String reproLine) {}
+
+  /** A suite that failed before tests were stopped by fail-fast. */
+  public record FailedSuite(String task, String suite, String reproLine) {}
+
+  /** The first failure in beast rounds of a test task. */
+  public record BeastFailure(String task, String suite, String seed, String reproLine) {}
+
+  /** Heap and GC statistics of all forks of a test task. */
+  public record TaskGcStats(String task, List<GcLogStats.Fork> forks) {}
+
+  /** The output a suite produced (including output dropped over the quota). */
+  public record NoisySuite(String task, String suite, long bytes, long millis) {
+    public double bytesPerSecond() {
+      return millis == 0 ? bytes : bytes * 1000.0 / millis;
+    }
+  }
+
+  public void incrementTasks() {
+    testTasksExecuted.increment();
+  }
+
+  public void testResult(String task, TestDescriptor desc, TestResult result) {
+    if (desc.isComposite()) return;
+    tests.add(result.getTestCount());
+    failures.add(result.getFailedTestCount());
+    ignored.add(result.getSkippedTestCount());
+
+    String suite = ErrorReportingTestListener.suiteOf(desc).getClassName();
+    suiteCounts.merge(
+        task + " " + suite,
+        new long[] {
+          result.getTestCount(), result.getFailedTestCount(), result.getSkippedTestCount()
+        },
+        (a, b) -> new long[] {a[0] + b[0], a[1] + b[1], a[2] + b[2]});
+  }
+
+  /**
+   * A suite is rerun by a retry of a given task. Its results in that task are subtracted from the
+   * totals, so that every suite is counted once, with the outcome of its last attempt.
+   */
+  public void retryingSuite(String previousAttempt, String suite) {
+    long[] counts = suiteCounts.remove(previousAttempt + " " + suite);
+    if (counts != null) {
+      tests.add(-counts[0]);
+      failures.add(-counts[1]);
+      ignored.add(-counts[2]);
+    }
+  }
+
+  public void flakySuite(String task, String suite, String reproLine) {
+    flakySuites.add(new FlakySuite(task, suite, reproLine));
+  }
+
+  public List<FlakySuite> getFlakySuites() {
+    return flakySuites.stream()
+        .sorted(Comparator.comparing(FlakySuite::task).thenComparing(FlakySuite::suite))
+        .toList();
+  }
+
+  public void beastFailure(String task, String suite, String seed, String reproLine) {
+    beastFailures.putIfAbsent(task, new BeastFailure(task, suite, seed, reproLine));
+  }
+
+  public BeastFailure getBeastFailure(String task) {
+    return beastFailures.get(task);
+  }
+
+  public void gcStats(String task, List<GcLogStats.Fork> forks) {
+    gcStats.add(new TaskGcStats(task, forks));
+  }
+
+  public List<TaskGcStats> getGcStats() {
+    return gcStats.stream().sorted(Comparator.comparing(TaskGcStats::task)).toList();
+  }
+
+  public void suiteOutput(String task, String suite, long bytes, long millis) {
+    if (bytes == 0) {
+      return;
+    }
+    synchronized (noisiestSuites) {
+      noisiestSuites.add(new NoisySuite(task, suite, bytes, millis));
+      if (noisiestSuites.size() > NOISIEST_SUITES) {
+        noisiestSuites.poll();
+      }
+    }
+  }
+
+  public List<NoisySuite> getNoisiestSuites() {
+    synchronized (noisiestSuites) {
+      return noisiestSuites.stream()
+          .sorted(Comparator.comparingLong(NoisySuite::bytes).reversed())
+          .toList();
+    }
+  }
+
+  public void outputQuotaExceeded(String task, String suite) {
+    outputQuotaViolations.computeIfAbsent(task, k -> new ConcurrentLinkedQueue<>()).add(suite);
+  }
+
+  public List<String> getOutputQuotaViolations(String task) {
+    return List.copyOf(outputQuotaViolations.getOrDefault(task, new ConcurrentLinkedQueue<>()));
+  }
+
+  /** A test fork (identified by its executor name) has started. */
+  public void forkStarted(String executor) {
+    runningForks.add(executor);
+    if (failFastStopped) {
+      stopFork(executor);
+    }
+  }
+
+  public void forkCompleted(String executor) {
+    runningForks.remove(executor);
+  }
+
+  /**
+   * Record a failed suite and stop all running test forks once {@code threshold} suites have
+   * failed.
+   *
+   * @return {@code true} if this failure stopped the tests.
+   */
+  public synchronized boolean failFastSuite(
+      String task, String suite, String reproLine, int threshold) {
+    if (failFastStopped) {
+      return false;
+    }
+    failFastSuites.add(new FailedSuite(task, suite, reproLine));
+    if (failFastSuites.size() < threshold) {
+      return false;
+    }
+    failFastStopped = true;
+    runningForks.forEach(TestsSummaryService::stopFork);
+    return true;
+  }
+
+  public boolean isFailFastStopped() {
+    return failFastStopped;
+  }
+
+  public List<FailedSuite> getFailFastSuites() {
+    return List.copyOf(failFastSuites);
+  }
+
+  private static void stopFork(String executor) {
+    ForkWatchdog.findProcess(executor).ifPresent(ProcessHandle::destroy);
+  }
+
+  public synchronized TestTimings getTimings() {
+    if (timings == null) {
+      timings = new TestTimings(getParameters().getSlowestCount().get());
+    }
+    return timings;
+  }
+
+  public long getTestTasksExecuted() {
+    return testTasksExecuted.sum();
+  }
+
+  public long getTests() {
+    return tests.sum();
+  }
+
+  public long getFailures() {
+    return failures.sum();
+  }
+
+  public long getIgnored() {
+    return ignored.sum();
+  }
+
+  /** A test listener forwarding results of a single test task to the summary service. */
+  static class Listener implements TestListener {
+    private final Provider<TestsSummaryService> service;
+    private final String projectPath;
+    private final String taskPath;
+
+    Listener(Provider<TestsSummaryService> service, String projectPath, String taskPath) {
+      this.service = service;
+      this.projectPath = projectPath;
+      this.taskPath = taskPath;
+    }
+
+    @Override
+    public void beforeSuite(TestDescriptor suite) {
+      if (suite.getParent() == null) {
+        service.get().incrementTasks();
+      }
+    }
+
+    @Override
+    public void afterSuite(TestDescriptor suite, TestResult result) {
+      if (suite.getParent() != null && suite.getClassName() != null) {
+        service
+            .get()
+            .getTimings()
+            .suite(projectPath, taskPath, suite.getClassName(), wallTime(result));
+      }
+    }
+
+    @Override
+    public void beforeTest(TestDescriptor testDescriptor) {}
+
+    @Override
+    public void afterTest(TestDescriptor testDescriptor, TestResult result) {
+      var summary = service.get();
+      summary.testResult(taskPath, testDescriptor, result);
+      if (result.getResultType() != TestResult.ResultType.SKIPPED) {
+        summary
+            .getTimings()
+            .test(
+                projectPath,
+                taskPath,
+                testDescriptor.getClassName(),
+                testDescriptor.getName(),
+                wallTime(result));
+      }
+    }
+
+    private static long wallTime(TestResult result) {
+      return Math.max(0, result.getEndTime() - result.getStartTime());
+    }
+  }
+
+  /**
+   * A test listener for tasks retrying failed suites of another test task. Suites that pass are
+   * reported as flaky, with the reproduce line of the original task.
+   */
+  static class FlakySuitesListener implements TestListener {
+    private final Provider<TestsSummaryService> service;
+    private final String taskPath;
+    private final String previousAttempt;
+    private final ReproduceLineExtension reproLine;
+
+    FlakySuitesListener(
+        Provider<TestsSummaryService> service,
+        String taskPath,
+        String previousAttempt,
+        ReproduceLineExtension reproLine) {
+      this.service = service;
+      this.taskPath = taskPath;
+      this.previousAttempt = previousAttempt;
+      this.reproLine = reproLine;
+    }
+
+    @Override
+    public void beforeSuite(TestDescriptor suite) {
+      if (isTopLevelSuite(suite)) {
+        service.get().retryingSuite(previousAttempt, suite.getClassName());
+      }
+    }
+
+    @Override
+    public void afterSuite(TestDescriptor suite, TestResult result) {
+      if (isTopLevelSuite(suite) && result.getResultType() == TestResult.ResultType.SUCCESS) {
+        service
+            .get()
+            .flakySuite(taskPath, suite.getClassName(), reproLine.getGradleReproLine(suite));
+      }
+    }
+
+    /** A test class suite (not a nested container, executor or the root). */
+    private static boolean isTopLevelSuite(TestDescriptor suite) {
+      return suite.getParent() != null
+          && suite.getClassName() != null
+          && ErrorReportingTestListener.suiteOf(suite) == suite;
+    }
+
+    @Override
+    public void beforeTest(TestDescriptor testDescriptor) {}
+
+    @Override
+    public void afterTest(TestDescriptor testDescriptor, TestResult result) {}
+  }
+
+  /**
+   * A test listener counting failed suites towards the build-wide fail-fast threshold and keeping
+   * track of running forks, so that they can be stopped. Failures in tasks that ignore failures
+   * (for example attempts that are retried) are not counted, they don't fail the build.
+   */
+  static class FailFastListener implements TestListener {
+    private final Provider<TestsSummaryService> service;
+    private final String taskPath;
+    private final int threshold;
+    private final ReproduceLineExtension reproLine;
+    private final Logger logger;
+    private boolean ignoreFailures;
+
+    FailFastListener(
+        Provider<TestsSummaryService> service,
+        String taskPath,
+        int threshold,
+        ReproduceLineExtension reproLine,
+        Logger logger) {
+      this.service = service;
+      this.taskPath = taskPath;
+      this.threshold = threshold;
+      this.reproLine = reproLine;
+      this.logger = logger;
+    }
+
+    /** Set before the task runs, once its configuration is final. */
+    void setIgnoreFailures(boolean ignoreFailures) {
+      this.ignoreFailures = ignoreFailures;
+    }
+
+    @Override
+    public void beforeSuite(TestDescriptor suite) {
+      if (ForkWatchdog.isExecutor(suite)) {
+        service.get().forkStarted(suite.getName());
+      }
+    }
+
+    @Override
+    public void afterSuite(TestDescriptor suite, TestResult result) {
+      if (ForkWatchdog.isExecutor(suite)) {
+        service.get().forkCompleted(suite.getName());
+      } else if (!ignoreFailures
+          && suite.getParent() != null
+          && ForkWatchdog.isExecutor(suite.getParent())
+          && result.getResultType() == TestResult.ResultType.FAILURE
+          && service
+              .get()
+              .failFastSuite(
+                  taskPath, suite.getName(), reproLine.getGradleReproLine(suite), threshold)) {
+        logger.error("tests.failfast: {} suite(s) failed, stopping all test JVMs.", threshold);
+      }
+    }
+
+    @Override
+    public void beforeTest(TestDescriptor testDescriptor) {}
+
+    @Override
+    public void afterTest(TestDescriptor testDescriptor, TestResult result) {}
+  }
+
+  /** A test listener recording the first failed suite in beast rounds of a test task. */
+  static class BeastFailureListener implements TestListener {
+    private final Provider<TestsSummaryService> service;
+    private final String taskPath;
+    private final String seed;
+    private final ReproduceLineExtension reproLine;
+
+    BeastFailureListener(
+        Provider<TestsSummaryService> service,
+        String taskPath,
+        String seed,
+        ReproduceLineExtension reproLine) {
+      this.service = service;
+      this.taskPath = taskPath;
+      this.seed = seed;
+      this.reproLine = reproLine;
+    }
+
+    @Override
+    public void beforeSuite(TestDescriptor suite) {}
+
+    @Override
+    public void afterSuite(TestDescriptor suite, TestResult result) {
+      if (suite.getParent() != null
+          && suite.getClassName() != null
+          && result.getResultType() == TestResult.ResultType.FAILURE) {
+        service
+            .get()
+            .beastFailure(
+                taskPath, suite.getClassName(), seed, reproLine.getGradleReproLine(suite));
+      }
+    }
+
+    @Override
+    public void beforeTest(TestDescriptor testDescriptor) {}
+
+    @Override
+    public void afterTest(TestDescriptor testDescriptor, TestResult result) {}
+  }
+
+  /**
+   * A test listener collecting heap and GC statistics from the GC logs of test forks, once all
+   * forks of the task have completed.
+   */
+  static class GcStatsListener implements TestListener {
+    private final Provider<TestsSummaryService> service;
+    private final String taskPath;
+    private final Path gcLogsDir;
+
+    GcStatsListener(Provider<TestsSummaryService> service, String taskPath, Path gcLogsDir) {
+      this.service = service;
+      this.taskPath = taskPath;
+      this.gcLogsDir = gcLogsDir;
+    }
+
+    @Override
+    public void beforeSuite(TestDescriptor suite) {}
+
+    @Override
+    public void afterSuite(TestDescriptor suite, TestResult result) {
+      if (suite.getParent() == null) {
+        try {
+          var forks = GcLogStats.parseAll(gcLogsDir);
+          if (!forks.isEmpty()) {
+            service.get().gcStats(taskPath, forks);
+          }
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    }
+
+    @Override
+    public void beforeTest(TestDescriptor testDescriptor) {}
+
+    @Override
+    public void afterTest(TestDescriptor testDescriptor, TestResult result) {}
+  }
+}
@@ -0,0 +1,25 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+class DefaultTestJvmsTest {
+  @Test
+  void parsesHeapSizes() {
+    assertThat(DefaultTestJvms.parseHeapSize("1048576")).hasValue(1L << 20);
+    assertThat(DefaultTestJvms.parseHeapSize("64k")).hasValue(64L << 10);
+    assertThat(DefaultTestJvms.parseHeapSize("512m")).hasValue(512L << 20);
+    assertThat(DefaultTestJvms.parseHeapSize("512M")).hasValue(512L << 20);
+    assertThat(DefaultTestJvms.parseHeapSize(" 2g ")).hasValue(2L << 30);
+    assertThat(DefaultTestJvms.parseHeapSize("1T")).hasValue(1L << 40);
+  }
+
+  @Test
+  void rejectsMalformedHeapSizes() {
+    assertThat(DefaultTestJvms.parseHeapSize("")).isEmpty();
+    assertThat(DefaultTestJvms.parseHeapSize("1.5g")).isEmpty();
+    assertThat(DefaultTestJvms.parseHeapSize("2gb")).isEmpty();
+    assertThat(DefaultTestJvms.parseHeapSize("-Xmx2g")).isEmpty();
+  }
+}
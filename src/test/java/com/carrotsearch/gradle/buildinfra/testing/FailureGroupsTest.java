@@ -0,0 +1,97 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class FailureGroupsTest {
+  @Test
+  void masksNumbersAndIdentityHashes() {
+    var a = failure("Port 1234 in use by Server@1a2b3c (0x7f00)", "org.example.SuiteA");
+    var b = failure("Port 5678 in use by Server@9f8e7d (0x1234)", "org.example.SuiteA");
+    var c = failure("Port 5678 refused", "org.example.SuiteA");
+
+    String signature = FailureGroups.signature("org.example.SuiteA", a);
+    assertThat(FailureGroups.signature("org.example.SuiteA", b)).isEqualTo(signature);
+    assertThat(FailureGroups.signature("org.example.SuiteA", c)).isNotEqualTo(signature);
+  }
+
+  @Test
+  void ignoresFramesOfTheFailingSuite() {
+    var a = failure("Fixture failed", "org.example.SuiteA");
+    var b = failure("Fixture failed", "org.example.SuiteB");
+
+    assertThat(FailureGroups.signature("org.example.SuiteB", b))
+        .isEqualTo(FailureGroups.signature("org.example.SuiteA", a))
+        .contains("org.example.Fixture.start")
+        .doesNotContain("Suite");
+  }
+
+  @Test
+  void includesTheCauseChain() {
+    var a = failure("Fixture failed", "org.example.SuiteA");
+    var b = failure("Fixture failed", "org.example.SuiteA");
+    a.initCause(new IllegalArgumentException("bad config"));
+    b.initCause(new UnsupportedOperationException("bad config"));
+
+    assertThat(FailureGroups.signature("org.example.SuiteA", a))
+        .isNotEqualTo(FailureGroups.signature("org.example.SuiteA", b));
+  }
+
+  @Test
+  void reportsOnlyTheFirstSuitesOfAGroup() {
+    var groups = new FailureGroups(2);
+    assertThat(groups.add("org.example.SuiteA", failure("Fixture failed", "org.example.SuiteA")))
+        .isTrue();
+    assertThat(groups.add("org.example.SuiteB", failure("Fixture failed", "org.example.SuiteB")))
+        .isTrue();
+    assertThat(groups.add("org.example.SuiteC", failure("Fixture failed", "org.example.SuiteC")))
+        .isFalse();
+    // Further failures of a reported suite are reported too.
+    assertThat(groups.add("org.example.SuiteA", failure("Fixture failed", "org.example.SuiteA")))
+        .isTrue();
+    assertThat(groups.add("org.example.SuiteD", failure("Other", "org.example.SuiteD"))).isTrue();
+
+    var truncated = groups.truncatedGroups();
+    assertThat(truncated).hasSize(1);
+    var group = truncated.getFirst();
+    assertThat(group.summary).isEqualTo("java.lang.IllegalStateException: Fixture failed");
+    assertThat(group.suites)
+        .containsExactly("org.example.SuiteA", "org.example.SuiteB", "org.example.SuiteC");
+    assertThat(group.failures).isEqualTo(4);
+  }
+
+  @Test
+  void reportsAllSuitesIfUnlimited() {
+    var groups = new FailureGroups(0);
+    for (String suite : List.of("org.example.SuiteA", "org.example.SuiteB", "org.example.SuiteC")) {
+      assertThat(groups.add(suite, failure("Fixture failed", suite))).isTrue();
+    }
+    assertThat(groups.truncatedGroups()).isEmpty();
+  }
+
+  @Test
+  void summarizesTheFirstLineOfTheMessage() {
+    var groups = new FailureGroups(1);
+    groups.add("org.example.SuiteA", failure("first line\nsecond line", "org.example.SuiteA"));
+    groups.add("org.example.SuiteB", failure("first line\nsecond line", "org.example.SuiteB"));
+
+    assertThat(groups.truncatedGroups().getFirst().summary)
+        .isEqualTo("java.lang.IllegalStateException: first line ...");
+  }
+
+  /** A failure thrown from a shared fixture, called from the given suite. */
+  private static IllegalStateException failure(String message, String suite) {
+    var e = new IllegalStateException(message);
+    e.setStackTrace(
+        new StackTraceElement[] {
+          new StackTraceElement("org.example.Fixture", "start", "Fixture.java", 10),
+          new StackTraceElement("org.example.Fixture", "open", "Fixture.java", 20),
+          new StackTraceElement(suite, "setUp", "Suite.java", 30),
+          new StackTraceElement(suite + "$Nested", "run", "Suite.java", 40),
+          new StackTraceElement("org.junit.Runner", "run", "Runner.java", 50),
+        });
+    return e;
+  }
+}
@@ -0,0 +1,70 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class GcLogStatsTest {
+  private static final String G1_LOG =
+      """
+      [0.005s] Using G1
+      [0.210s] GC(0) Pause Young (Normal) (G1 Evacuation Pause) 24M->4M(256M) 3.456ms
+      [0.950s] GC(1) Pause Young (Prepare Mixed) (G1 Evacuation Pause) 120M->90M(256M) 5.100ms
+      [0.960s] GC(2) Concurrent Mark Cycle
+      [0.980s] GC(2) Pause Remark 95M->95M(256M) 1.200ms
+      [1.010s] GC(2) Pause Cleanup 96M->96M(256M) 0.100ms
+      [1.020s] GC(2) Concurrent Mark Cycle 60.000ms
+      [2.500s] Heap
+      [2.500s]  garbage-first heap   total 262144K, used 131072K [0x00000000f0000000
+      [2.500s]   region size 1024K, 30 young (30720K), 2 survivors (2048K)
+      [2.500s]  Metaspace       used 9369K, committed 9600K, reserved 1114112K
+      """;
+
+  @TempDir Path tempDir;
+
+  @Test
+  void parsesPausesAndHeapSizes() throws IOException {
+    Path log = tempDir.resolve("gc-42.log");
+    Files.writeString(log, G1_LOG);
+
+    var fork = GcLogStats.parse("42", log);
+    assertThat(fork.pid()).isEqualTo("42");
+    assertThat(fork.wallMillis()).isEqualTo(2500);
+    // Concurrent phases are not pauses.
+    assertThat(fork.pauses()).isEqualTo(4);
+    assertThat(fork.pauseMillis()).isCloseTo(9.856, within(1e-9));
+    // The heap at exit is the highest occupancy.
+    assertThat(fork.peakUsed()).isEqualTo(128L << 20);
+    assertThat(fork.peakLive()).isEqualTo(96L << 20);
+    assertThat(fork.committed()).isEqualTo(256L << 20);
+    assertThat(fork.gcShare()).isCloseTo(9.856 / 2500, within(1e-9));
+  }
+
+  @Test
+  void emptyLogHasNoStatistics() throws IOException {
+    Path log = tempDir.resolve("gc-1.log");
+    Files.writeString(log, "");
+
+    var fork = GcLogStats.parse("1", log);
+    assertThat(fork.wallMillis()).isEqualTo(0);
+    assertThat(fork.pauses()).isEqualTo(0);
+    assertThat(fork.gcShare()).isEqualTo(0d);
+  }
+
+  @Test
+  void parsesAllForkLogsInADirectory() throws IOException {
+    Files.writeString(tempDir.resolve("gc-200.log"), G1_LOG);
+    Files.writeString(tempDir.resolve("gc-100.log"), G1_LOG);
+    Files.writeString(tempDir.resolve("other.log"), G1_LOG);
+    Files.writeString(tempDir.resolve("gc-300.txt"), G1_LOG);
+
+    assertThat(GcLogStats.parseAll(tempDir).stream().map(GcLogStats.Fork::pid).toList())
+        .containsExactly("100", "200");
+    assertThat(GcLogStats.parseAll(tempDir.resolve("missing"))).isEmpty();
+  }
+}
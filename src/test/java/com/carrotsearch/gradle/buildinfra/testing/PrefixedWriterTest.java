@@ -0,0 +1,64 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import org.junit.jupiter.api.Test;
+
+class PrefixedWriterTest {
+  private final StringWriter sink = new StringWriter();
+
+  @Test
+  void prefixesEveryLine() throws IOException {
+    var writer = new PrefixedWriter("> ", sink, 80);
+    writer.write("a\nbc\n\nd");
+    writer.completeLine();
+    assertThat(sink.toString()).isEqualTo("> a\n> bc\n> \n> d\n");
+  }
+
+  @Test
+  void joinsLinesAcrossWrites() throws IOException {
+    var writer = new PrefixedWriter("> ", sink, 80);
+    writer.write("ab");
+    writer.write('c');
+    writer.write("d\ne");
+    writer.completeLine();
+    writer.completeLine();
+    assertThat(sink.toString()).isEqualTo("> abcd\n> e\n");
+  }
+
+  @Test
+  void wrapsLinesAtMaxWidth() throws IOException {
+    var writer = new PrefixedWriter("> ", sink, 4);
+    writer.write("abcd\nefghijklmn\n");
+    assertThat(sink.toString()).isEqualTo("> abcd\n> efgh\n> ijkl\n> mn\n");
+  }
+
+  @Test
+  void wrapsBufferedPartialLines() throws IOException {
+    var writer = new PrefixedWriter("> ", sink, 4);
+    writer.write("ab");
+    writer.write("cdefg\n");
+    assertThat(sink.toString()).isEqualTo("> abcd\n> efg\n");
+  }
+
+  @Test
+  void wrapsSingleCharacterWrites() throws IOException {
+    var writer = new PrefixedWriter("> ", sink, 4);
+    for (char c : "abcde".toCharArray()) {
+      writer.write(c);
+    }
+    writer.write('\n');
+    assertThat(sink.toString()).isEqualTo("> abcd\n> e\n");
+  }
+
+  @Test
+  void wrapsStringsLongerThanTheScratchBuffer() throws IOException {
+    var writer = new PrefixedWriter("> ", sink, 4096);
+    writer.write("x".repeat(10000) + "\n");
+    assertThat(sink.toString())
+        .isEqualTo(
+            "> " + "x".repeat(4096) + "\n> " + "x".repeat(4096) + "\n> " + "x".repeat(1808) + "\n");
+  }
+}
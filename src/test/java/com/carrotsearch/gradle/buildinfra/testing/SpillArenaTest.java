@@ -0,0 +1,126 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SpillArenaTest {
+  private static final int BLOCK_SIZE = SpillArena.BLOCK_SIZE;
+
+  @TempDir Path tempDir;
+
+  @Test
+  void interleavedSegmentsKeepTheirContent() throws IOException {
+    try (var arena = new SpillArena(tempDir)) {
+      var a = arena.newSegment();
+      var b = arena.newSegment();
+      var expectedA = new StringBuilder();
+      var expectedB = new StringBuilder();
+      for (int i = 0; i < 10; i++) {
+        String chunkA = ("a" + i).repeat(BLOCK_SIZE / 3);
+        String chunkB = ("b" + i).repeat(BLOCK_SIZE / 5);
+        write(a, chunkA);
+        write(b, chunkB);
+        expectedA.append(chunkA);
+        expectedB.append(chunkB);
+      }
+
+      assertThat(contentOf(a)).isEqualTo(expectedA.toString());
+      assertThat(contentOf(b)).isEqualTo(expectedB.toString());
+      assertThat(a.length()).isEqualTo(expectedA.length());
+    }
+  }
+
+  @Test
+  void releasedBlocksAreReused() throws IOException {
+    try (var arena = new SpillArena(tempDir)) {
+      for (int i = 0; i < 5; i++) {
+        var segment = arena.newSegment();
+        write(segment, "x".repeat(4 * BLOCK_SIZE));
+        segment.close();
+      }
+      assertThat(Files.size(arenaFile())).isEqualTo(4L * BLOCK_SIZE);
+    }
+    assertThat(arenaFiles()).isEmpty();
+  }
+
+  @Test
+  void retainsHeadAndTailWithMarker() throws IOException {
+    try (var arena = new SpillArena(tempDir, BLOCK_SIZE, BLOCK_SIZE)) {
+      var segment = arena.newSegment();
+      for (char c = 'a'; c <= 'e'; c++) {
+        write(segment, String.valueOf(c).repeat(BLOCK_SIZE));
+      }
+
+      assertThat(segment.length()).isEqualTo(5L * BLOCK_SIZE);
+      assertThat(contentOf(segment))
+          .isEqualTo(
+              "a".repeat(BLOCK_SIZE)
+                  + "\n[... skipped 98,304 bytes of output ...]\n"
+                  + "e".repeat(BLOCK_SIZE));
+      // Skipped blocks are recycled, the segment only ever holds the head and the tail block.
+      assertThat(Files.size(arenaFile())).isEqualTo(2L * BLOCK_SIZE);
+    }
+  }
+
+  @Test
+  void retainsEverythingUnderTheLimit() throws IOException {
+    try (var arena = new SpillArena(tempDir, BLOCK_SIZE, BLOCK_SIZE)) {
+      var segment = arena.newSegment();
+      String text = "x".repeat(2 * BLOCK_SIZE - 1);
+      write(segment, text);
+      assertThat(contentOf(segment)).isEqualTo(text);
+    }
+  }
+
+  @Test
+  void skipsPartialCharactersAroundTheMarker() throws IOException {
+    try (var arena = new SpillArena(tempDir, BLOCK_SIZE, BLOCK_SIZE)) {
+      var segment = arena.newSegment();
+      // A two-byte character across the end of the head block and a three-byte one across the
+      // start of the tail block.
+      write(segment, "x".repeat(BLOCK_SIZE - 1));
+      write(segment, "\u00e9");
+      write(segment, "y".repeat(2 * BLOCK_SIZE - 2));
+      write(segment, "\u20ac");
+      write(segment, "z".repeat(10));
+
+      assertThat(contentOf(segment))
+          .isEqualTo(
+              "x".repeat(BLOCK_SIZE - 1)
+                  + "\n[... skipped 65,539 bytes of output ...]\n"
+                  + "z".repeat(10));
+    }
+  }
+
+  private Path arenaFile() throws IOException {
+    var files = arenaFiles();
+    assertThat(files).hasSize(1);
+    return files.getFirst();
+  }
+
+  private List<Path> arenaFiles() throws IOException {
+    try (Stream<Path> files = Files.list(tempDir)) {
+      return files.toList();
+    }
+  }
+
+  static void write(SpillArena.Segment segment, String text) throws IOException {
+    segment.write(text.getBytes(StandardCharsets.UTF_8));
+  }
+
+  static String contentOf(SpillArena.Segment segment) throws IOException {
+    var bytes = new ByteArrayOutputStream();
+    segment.transferTo(Channels.newChannel(bytes));
+    return bytes.toString(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,62 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SuiteDurationsTest {
+  @TempDir Path tempDir;
+
+  @Test
+  void savesAndLoadsDurations() {
+    Path file = tempDir.resolve("history").resolve("durations.json");
+    var durations = SuiteDurations.load(file);
+    assertThat(durations.isEmpty()).isTrue();
+
+    durations.record("org.example.A", 100);
+    durations.record("org.example.B", -5);
+    durations.save();
+
+    assertThat(SuiteDurations.load(file).asMap())
+        .isEqualTo(Map.of("org.example.A", 100L, "org.example.B", 0L));
+  }
+
+  @Test
+  void ignoresCorruptedFiles() throws IOException {
+    Path file = tempDir.resolve("durations.json");
+    Files.writeString(file, "{ truncated");
+    assertThat(SuiteDurations.load(file).isEmpty()).isTrue();
+  }
+
+  @Test
+  void dropsSuitesThatDontMatch() {
+    var durations = SuiteDurations.load(tempDir.resolve("durations.json"));
+    durations.record("org.example.A", 100);
+    durations.record("org.example.Deleted", 100);
+
+    assertThat(durations.retainIf(suite -> !suite.endsWith("Deleted"))).isTrue();
+    assertThat(durations.retainIf(suite -> true)).isFalse();
+    assertThat(durations.asMap().keySet()).containsExactly("org.example.A");
+  }
+
+  @Test
+  void forksAreCappedByTheLongestSuite() {
+    // One suite takes as long as all others together: two forks finish as soon as any number.
+    assertThat(SuiteDurations.usefulForks(Map.of("A", 100L, "B", 50L, "C", 50L), 8)).isEqualTo(2);
+    assertThat(SuiteDurations.usefulForks(Map.of("A", 100L, "B", 60L, "C", 50L), 8)).isEqualTo(3);
+    assertThat(SuiteDurations.usefulForks(Map.of("A", 10L, "B", 10L, "C", 10L), 2)).isEqualTo(2);
+    assertThat(SuiteDurations.usefulForks(Map.of("A", 100L), 4)).isEqualTo(1);
+  }
+
+  @Test
+  void forksAreNotCappedWithoutHistory() {
+    assertThat(SuiteDurations.usefulForks(Map.of(), 4)).isEqualTo(4);
+    assertThat(SuiteDurations.usefulForks(Map.of("A", 0L), 4)).isEqualTo(4);
+    assertThat(SuiteDurations.usefulForks(Map.of("A", 10L), 0)).isEqualTo(1);
+  }
+}
@@ -0,0 +1,105 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import org.junit.jupiter.api.Test;
+
+class TestImpactIndexTest {
+  @Test
+  void readsClassesAndTypeReferencesOfAllConstantKinds() throws IOException {
+    var bytes = new ByteArrayOutputStream();
+    var out = new DataOutputStream(bytes);
+    out.writeInt(0xCAFEBABE);
+    out.writeShort(0);
+    out.writeShort(65);
+    out.writeShort(19);
+    // 1, 2: a class.
+    out.writeByte(1);
+    out.writeUTF("org/example/Referenced");
+    out.writeByte(7);
+    out.writeShort(1);
+    // 3-4, 5-6: a long and a double take two slots each.
+    out.writeByte(5);
+    out.writeLong(42);
+    out.writeByte(6);
+    out.writeDouble(1.5);
+    // 7-12: a method handle, method type, dynamic, invokedynamic, module and package.
+    out.writeByte(15);
+    out.writeByte(6);
+    out.writeShort(2);
+    out.writeByte(16);
+    out.writeShort(13);
+    out.writeByte(17);
+    out.writeInt(0);
+    out.writeByte(18);
+    out.writeInt(0);
+    out.writeByte(19);
+    out.writeShort(1);
+    out.writeByte(20);
+    out.writeShort(1);
+    // 13: a (generic) descriptor.
+    out.writeByte(1);
+    out.writeUTF("(Lorg/example/Param;)Ljava/util/List<Lorg/example/Element;>;");
+    // 14, 15: an array class.
+    out.writeByte(7);
+    out.writeShort(15);
+    out.writeByte(1);
+    out.writeUTF("[Lorg/example/ArrayElement;");
+    // 16-18: a string, an integer and a plain string.
+    out.writeByte(8);
+    out.writeShort(18);
+    out.writeByte(3);
+    out.writeInt(7);
+    out.writeByte(1);
+    out.writeUTF("not/a/Reference");
+
+    assertThat(TestImpactIndex.referencedClasses(bytes.toByteArray()))
+        .containsExactlyInAnyOrder(
+            "org/example/Referenced",
+            "org/example/Param",
+            "java/util/List",
+            "org/example/Element",
+            "org/example/ArrayElement");
+  }
+
+  @Test
+  void readsCompiledClasses() throws IOException {
+    byte[] classFile;
+    String resource = "/" + Fixture.class.getName().replace('.', '/') + ".class";
+    try (InputStream in = Fixture.class.getResourceAsStream(resource)) {
+      classFile = in.readAllBytes();
+    }
+    assertThat(TestImpactIndex.referencedClasses(classFile))
+        .contains(
+            "java/util/function/Supplier",
+            "java/util/concurrent/atomic/AtomicLong",
+            "java/lang/invoke/LambdaMetafactory");
+  }
+
+  @Test
+  void ignoresOtherFiles() throws IOException {
+    assertThat(TestImpactIndex.referencedClasses(new byte[] {1, 2, 3, 4, 5, 6, 7, 8})).isEmpty();
+  }
+
+  @Test
+  void rejectsUnknownConstants() {
+    byte[] classFile = {(byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE, 0, 0, 0, 65, 0, 2, 99};
+    assertThatThrownBy(() -> TestImpactIndex.referencedClasses(classFile))
+        .isInstanceOf(IOException.class)
+        .hasMessageContaining("99");
+  }
+
+  /** A class with long and double constants and a lambda (method handles, invokedynamic). */
+  static class Fixture {
+    long big = 1L << 40;
+    double ratio = 0.37;
+    Supplier<AtomicLong> counter = () -> new AtomicLong(big);
+  }
+}
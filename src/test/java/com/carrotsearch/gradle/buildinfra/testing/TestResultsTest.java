@@ -0,0 +1,69 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.gradle.api.tasks.testing.TestOutputEvent;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TestResultsTest {
+  @TempDir Path tempDir;
+
+  @Test
+  void readsEntriesGroupedBySuite() throws IOException {
+    Path file = tempDir.resolve(TestResults.fileName("test"));
+    try (var writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+      TestResults.write(writer, test("org.example.B", "b1", "SUCCESS"));
+      TestResults.write(writer, test("org.example.A", "a1", "FAILURE"));
+      TestResults.write(
+          writer, TestResults.output("org.example.B", TestOutputEvent.Destination.StdErr, "x\n"));
+      TestResults.write(writer, suite("org.example.B"));
+      TestResults.write(writer, test("org.example.A", "a2", "SKIPPED"));
+      TestResults.write(writer, suite("org.example.A"));
+    }
+
+    var suites = TestResults.readBySuite(file);
+    assertThat(suites.keySet()).containsExactly("org.example.B", "org.example.A");
+
+    var b = suites.get("org.example.B");
+    assertThat(b).hasSize(3);
+    assertThat(b.get(0).forTest()).isTrue();
+    assertThat(b.get(1).forOutput()).isTrue();
+    assertThat(b.get(1).forSuite()).isFalse();
+    assertThat(b.get(1).destination()).isEqualTo("StdErr");
+    assertThat(b.get(1).output()).isEqualTo("x\n");
+    assertThat(b.get(2).forSuite()).isTrue();
+
+    var a = suites.get("org.example.A");
+    assertThat(a.stream().map(TestResults.Entry::result).toList())
+        .containsExactly("FAILURE", "SKIPPED", "SUCCESS");
+    assertThat(a.get(0).failure()).isEqualTo("java.lang.AssertionError: boom");
+    assertThat(a.get(0).seconds()).isEqualTo(1.5d);
+  }
+
+  @Test
+  void skipsATruncatedLastLine() throws IOException {
+    Path file = tempDir.resolve(TestResults.fileName("test"));
+    try (var writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+      TestResults.write(writer, test("org.example.A", "a1", "SUCCESS"));
+    }
+    Files.writeString(file, "{\"suite\":\"org.example.A\",\"te", StandardOpenOption.APPEND);
+
+    var suites = TestResults.readBySuite(file);
+    assertThat(suites.get("org.example.A")).hasSize(1);
+  }
+
+  private static TestResults.Entry test(String suite, String test, String result) {
+    String failure = result.equals("FAILURE") ? "java.lang.AssertionError: boom" : null;
+    return new TestResults.Entry(suite, test, result, 1000, 2500, null, null, failure, null, null);
+  }
+
+  private static TestResults.Entry suite(String suite) {
+    return new TestResults.Entry(suite, null, "SUCCESS", 1000, 3000, null, null, null, null, null);
+  }
+}
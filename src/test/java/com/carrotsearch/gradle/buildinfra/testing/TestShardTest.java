@@ -0,0 +1,117 @@
+package com.carrotsearch.gradle.buildinfra.testing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.util.stream.IntStream;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.FileTreeElement;
+import org.gradle.api.file.RelativePath;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TestShardTest {
+  @TempDir Path tempDir;
+
+  @Test
+  void rejectsInvalidSpecs() {
+    for (String spec : new String[] {"0/3", "4/3", "1/0", "1", "a/b"}) {
+      assertThatThrownBy(() -> TestShard.parse(spec, null))
+          .isInstanceOf(GradleException.class)
+          .hasMessageContaining("Invalid test shard");
+    }
+  }
+
+  @Test
+  void everySuiteIsInExactlyOneShard() {
+    for (int i = 0; i < 200; i++) {
+      String suite = "org.example.Suite" + i;
+      long shards =
+          IntStream.rangeClosed(1, 4)
+              .filter(shard -> TestShard.parse(shard + "/4", null).contains(suite))
+              .count();
+      assertThat(shards).isEqualTo(1);
+    }
+  }
+
+  @Test
+  void assignmentIsStable() {
+    var a = TestShard.parse("2/5", null);
+    var b = TestShard.parse(" 2/5 ", null);
+    for (int i = 0; i < 200; i++) {
+      String suite = "org.example.Suite" + i;
+      assertThat(a.shardOf(suite)).isEqualTo(b.shardOf(suite));
+    }
+  }
+
+  @Test
+  void nestedClassesFollowTheirSuite() {
+    for (int i = 0; i < 50; i++) {
+      var spec = TestShard.parse("1/3", null).otherShards();
+      String suite = "org/example/Suite" + i;
+      boolean excluded = !TestShard.parse("1/3", null).contains(suite.replace('/', '.'));
+      assertThat(spec.isSatisfiedBy(file(suite + ".class"))).isEqualTo(excluded);
+      assertThat(spec.isSatisfiedBy(file(suite + "$Nested.class"))).isEqualTo(excluded);
+      assertThat(spec.isSatisfiedBy(file(suite + "$Nested$Deeper.class"))).isEqualTo(excluded);
+    }
+  }
+
+  @Test
+  void neverExcludesDirectoriesOrResources() {
+    var spec = TestShard.parse("1/2", null).otherShards();
+    for (int i = 0; i < 20; i++) {
+      assertThat(spec.isSatisfiedBy(directory("org/example" + i))).isFalse();
+      assertThat(spec.isSatisfiedBy(file("org/example/resource" + i + ".txt"))).isFalse();
+    }
+  }
+
+  @Test
+  void balancesSuitesWithKnownDurations() {
+    Path file = tempDir.resolve("durations.json");
+    var durations = SuiteDurations.load(file);
+    durations.record("org.example.A", 100);
+    durations.record("org.example.B", 60);
+    durations.record("org.example.C", 40);
+    durations.save();
+
+    var shard = TestShard.parse("1/2", file);
+    assertThat(shard.shardOf("org.example.A")).isEqualTo(1);
+    assertThat(shard.shardOf("org.example.B")).isEqualTo(2);
+    assertThat(shard.shardOf("org.example.C")).isEqualTo(2);
+    // Suites without a known duration are hashed.
+    assertThat(shard.shardOf("org.example.D"))
+        .isEqualTo(TestShard.parse("1/2", null).shardOf("org.example.D"));
+  }
+
+  @Test
+  void failsOnMissingDurationsFile() {
+    var shard = TestShard.parse("1/2", tempDir.resolve("missing.json"));
+    assertThatThrownBy(() -> shard.contains("org.example.A"))
+        .isInstanceOf(GradleException.class)
+        .hasMessageContaining("does not exist");
+  }
+
+  private static FileTreeElement file(String path) {
+    return element(path, false);
+  }
+
+  private static FileTreeElement directory(String path) {
+    return element(path, true);
+  }
+
+  private static FileTreeElement element(String path, boolean directory) {
+    var relativePath = RelativePath.parse(!directory, path);
+    return (FileTreeElement)
+        Proxy.newProxyInstance(
+            TestShardTest.class.getClassLoader(),
+            new Class<?>[] {FileTreeElement.class},
+            (proxy, method, args) ->
+                switch (method.getName()) {
+                  case "isDirectory" -> directory;
+                  case "getRelativePath" -> relativePath;
+                  default -> throw new UnsupportedOperationException(method.getName());
+                });
+  }
+}